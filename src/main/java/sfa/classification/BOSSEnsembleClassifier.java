@@ -3,15 +3,21 @@
 package sfa.classification;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import sfa.timeseries.TimeSeries;
 import sfa.transformation.BOSS;
 import sfa.transformation.BOSS.BagOfPattern;
 
-import com.carrotsearch.hppc.cursors.IntIntCursor;
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntIntHashMap;
 
 /**
  * The Bag-of-SFA-Symbols Ensemble Classifier as published in
@@ -29,6 +35,14 @@ public class BOSSEnsembleClassifier extends Classifier {
 
   public static int MAX_WINDOW_LENGTH = 250;
 
+  // evaluate only every windowStep-th window length first, and then refine around
+  // those within factor of the best. 1 evaluates all window lengths.
+  public static int windowStep = 1;
+
+  // caps the memory of the train bags retained by the ensemble in MB, keeping the
+  // best scoring models. Enforced during training. 0 disables the cap.
+  public static int maxEnsembleMemoryMB = 0;
+
   // the trained weasel
   public Ensemble<BOSSModel> model;
 
@@ -54,6 +68,144 @@ public class BOSSEnsembleClassifier extends Classifier {
 
     // the best number of Fourier values to be used
     public int features;
+
+    /**
+     * Estimates the memory of the train bags in bytes.
+     */
+    public long getBagMemory() {
+      long memory = 16 + 4L * this.bag.length;
+      for (BagOfPattern b : this.bag) {
+        // object headers of the bag, label and arrays, and words and counts
+        memory += 72 + 8L * b.words.length;
+      }
+      return memory;
+    }
+
+    // inverted index over bag, built on first use
+    transient InvertedIndex index;
+
+    public synchronized InvertedIndex getIndex() {
+      if (this.index == null) {
+        this.index = new InvertedIndex(this.bag);
+      }
+      return this.index;
+    }
+  }
+
+  /**
+   * An inverted index of the train bags: maps each SFA word to the postings
+   * (train sample, count) of the bags containing that word.
+   * <p>
+   * The BOSS distance of a test bag A to a train bag B only sums over the words of A:
+   * d(A,B) = sum_{w in A} (A(w)-B(w))^2 = sum_{w in A} A(w)^2 + sum_{w in A and B} (B(w)^2 - 2 A(w) B(w)).
+   * Thus, the distances are accumulated only over the postings of the words of the
+   * test bag, and all train bags sharing no word have the no-match distance.
+   */
+  public static class InvertedIndex {
+    final BagOfPattern[] bags;
+
+    // maps a word to its postings in [offsets[i], offsets[i+1])
+    final IntIntHashMap words;
+    final int[] offsets;
+    final int[] ids;
+    final int[] counts;
+
+    public InvertedIndex(BagOfPattern[] bags) {
+      this.bags = bags;
+
+      // number of postings per word
+      this.words = new IntIntHashMap();
+      IntArrayList sizes = new IntArrayList();
+      for (BagOfPattern bag : bags) {
+        for (int word : bag.words) {
+          int index = this.words.indexOf(word);
+          if (index >= 0) {
+            int i = this.words.indexGet(index);
+            sizes.set(i, sizes.get(i) + 1);
+          } else {
+            this.words.indexInsert(index, word, sizes.size());
+            sizes.add(1);
+          }
+        }
+      }
+
+      this.offsets = new int[sizes.size() + 1];
+      for (int i = 0; i < sizes.size(); i++) {
+        this.offsets[i + 1] = this.offsets[i] + sizes.get(i);
+      }
+
+      // postings are sorted by train sample
+      this.ids = new int[this.offsets[sizes.size()]];
+      this.counts = new int[this.ids.length];
+      int[] next = Arrays.copyOf(this.offsets, sizes.size());
+      for (int j = 0; j < bags.length; j++) {
+        for (int k = 0; k < bags[j].words.length; k++) {
+          int p = next[this.words.get(bags[j].words[k])]++;
+          this.ids[p] = j;
+          this.counts[p] = bags[j].counts[k];
+        }
+      }
+    }
+
+    public int size() {
+      return this.bags.length;
+    }
+
+    /**
+     * Returns the label of the 1-NN of the test bag, or null, if no train bag
+     * shares a word with the test bag. Identical bags (distance 0) and the test
+     * bag itself are skipped. On ties the first train bag wins.
+     *
+     * @param test    the test bag
+     * @param delta   scratch space of size() values, all 0
+     * @param touched scratch space of size() values
+     * @param seen    scratch space of size() values, all false
+     */
+    public Double nearestNeighbor(
+        BagOfPattern test, long[] delta, int[] touched, boolean[] seen) {
+
+      // Distance if there is no matching word
+      long noMatchDistance = 0;
+      int nTouched = 0;
+      for (int k = 0; k < test.words.length; k++) {
+        long value = test.counts[k];
+        noMatchDistance += value * value;
+
+        int index = this.words.indexOf(test.words[k]);
+        if (index >= 0) {
+          int i = this.words.indexGet(index);
+          for (int p = this.offsets[i]; p < this.offsets[i + 1]; p++) {
+            int j = this.ids[p];
+            long count = this.counts[p];
+            if (!seen[j]) {
+              seen[j] = true;
+              touched[nTouched++] = j;
+            }
+            delta[j] += count * count - 2 * value * count;
+          }
+        }
+      }
+
+      // train bags in order, as the first nearest neighbor wins
+      Arrays.sort(touched, 0, nTouched);
+
+      long minDistance = Integer.MAX_VALUE;
+      Double label = null;
+      for (int t = 0; t < nTouched; t++) {
+        int j = touched[t];
+        long distance = noMatchDistance + delta[j];
+        delta[j] = 0;
+        seen[j] = false;
+
+        // update nearest neighbor
+        if (this.bags[j] != test
+            && distance != noMatchDistance && distance < minDistance && distance > 0) {
+          minDistance = distance;
+          label = this.bags[j].label;
+        }
+      }
+      return label;
+    }
   }
 
   @Override
@@ -128,22 +280,121 @@ public class BOSSEnsembleClassifier extends Classifier {
 
     final ArrayList<BOSSModel> results = new ArrayList<>(windows.length);
     final AtomicInteger correctTraining = new AtomicInteger(0);
+    final AtomicReference<BOSSModel> released = new AtomicReference<>();
+
+    if (windowStep > 1) {
+      // coarse grid of window lengths
+      Integer[] grid = new Integer[(windows.length + windowStep - 1) / windowStep];
+      for (int i = 0; i < grid.length; i++) {
+        grid[i] = windows[i * windowStep];
+      }
+      fitModels(grid, normMean, samples, results, correctTraining, released);
+
+      // refine around the windows within factor of the best
+      fitModels(refineWindows(windows, results, correctTraining.get()),
+          normMean, samples, results, correctTraining, released);
+    } else {
+      fitModels(windows, normMean, samples, results, correctTraining, released);
+    }
+
+    // returns the ensemble based on the best window-lengths within factor
+    Ensemble<BOSSModel> ensemble = filterByFactor(results, correctTraining.get(), factor);
+    return maxEnsembleMemoryMB > 0 ? limitMemory(ensemble, maxEnsembleMemoryMB * 1024L * 1024L) : ensemble;
+  }
+
+  /**
+   * Returns those window lengths, that are not part of the coarse grid and are closer
+   * than windowStep to a model within factor of the best.
+   */
+  protected Integer[] refineWindows(
+      Integer[] windows, List<BOSSModel> results, int correctTraining) {
+    Set<Integer> promising = new HashSet<>();
+    for (BOSSModel model : results) {
+      if (model.score.training >= correctTraining * factor) {
+        promising.add(model.windowLength);
+      }
+    }
+
+    List<Integer> refine = new ArrayList<>();
+    for (int i = 0; i < windows.length; i++) {
+      if (i % windowStep != 0) {
+        for (int w = windows[i] - windowStep + 1; w < windows[i] + windowStep; w++) {
+          if (promising.contains(w)) {
+            refine.add(windows[i]);
+            break;
+          }
+        }
+      }
+    }
+    return refine.toArray(new Integer[]{});
+  }
+
+  /**
+   * Keeps the best scoring models of the ensemble, as long as their train bags fit
+   * into maxMemory bytes. The best model is always kept.
+   */
+  protected Ensemble<BOSSModel> limitMemory(Ensemble<BOSSModel> ensemble, long maxMemory) {
+    List<BOSSModel> models = new ArrayList<>();
+    long memory = 0;
+    for (BOSSModel model : ensemble.model) {
+      memory += model.getBagMemory();
+      if (memory > maxMemory && !models.isEmpty()) {
+        break;
+      }
+      models.add(model);
+    }
+    return new Ensemble<>(models);
+  }
+
+  /**
+   * Releases the worst scoring models, until the train bags fit into maxMemory bytes.
+   * A released model would not be part of the best scoring models kept by limitMemory.
+   * Neither would any later model, that scores worse than a released one, even if the
+   * memory is freed up later on.
+   *
+   * @return the best scoring released model, or null, if none was released
+   */
+  protected BOSSModel releaseWorstModels(List<BOSSModel> results, long maxMemory) {
+    long memory = 0;
+    for (BOSSModel model : results) {
+      memory += model.getBagMemory();
+    }
+    BOSSModel released = null;
+    while (memory > maxMemory && results.size() > 1) {
+      BOSSModel worst = Collections.min(results);
+      results.remove(worst);
+      memory -= worst.getBagMemory();
+      released = worst;
+    }
+    return released;
+  }
 
-    ParallelFor.withIndex(exec, threads, new ParallelFor.Each() {
+  protected void fitModels(Integer[] windows,
+                           boolean normMean,
+                           TimeSeries[] samples,
+                           List<BOSSModel> results,
+                           AtomicInteger correctTraining,
+                           AtomicReference<BOSSModel> released) {
+    final int blocks = getExecutionContext().getThreads();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
         for (int i = 0; i < windows.length; i++) {
-          if (i % threads == id) {
+          if (i % blocks == id) {
             BOSSModel model = new BOSSModel(normMean, windows[i]);
             try {
               BOSS boss = new BOSS(maxF, maxS, windows[i], model.normed);
+              boss.setExecutionContext(getExecutionContext());
               int[][] words = boss.createWords(samples);
+              BagOfPattern[][] bags = boss.createBagOfPatterns(words, samples, minF, maxF);
 
               for (int f = minF; f <= maxF; f += 2) {
 
-                BagOfPattern[] bag = boss.createBagOfPattern(words, samples, f);
+                BagOfPattern[] bag = bags[(f - minF) / 2];
+                bags[(f - minF) / 2] = null; // unless kept by the model
 
-                Predictions p = predict(bag, bag);
+                // stop early, once this word length cannot beat the best one
+                Predictions p = predict(bag, new InvertedIndex(bag), samples.length - model.score.training - 1);
 
                 if (p.correct.get() > model.score.training) {
                   model.score.training = p.correct.get();
@@ -164,68 +415,80 @@ public class BOSSEnsembleClassifier extends Classifier {
             synchronized (correctTraining) {
               if (model.score.training > correctTraining.get()) {
                 correctTraining.set(model.score.training);
+
+                // release the models, that fell below factor to the new best score
+                Iterator<BOSSModel> it = results.iterator();
+                while (it.hasNext()) {
+                  if (it.next().score.training < correctTraining.get() * factor) {
+                    it.remove();
+                  }
+                }
               }
 
-              // add to ensemble if train-score is within factor to the best score
-              if (model.score.training >= correctTraining.get() * factor) {
+              // add to ensemble if train-score is within factor to the best score, and
+              // better than any model released to cap the memory
+              if (model.score.training >= correctTraining.get() * factor
+                  && (released.get() == null || model.compareTo(released.get()) > 0)) {
                 results.add(model);
+
+                if (maxEnsembleMemoryMB > 0) {
+                  BOSSModel worst = releaseWorstModels(results, maxEnsembleMemoryMB * 1024L * 1024L);
+                  if (worst != null && (released.get() == null || worst.compareTo(released.get()) > 0)) {
+                    released.set(worst);
+                  }
+                }
               }
             }
           }
         }
       }
     });
-
-    // returns the ensemble based on the best window-lengths within factor
-    return filterByFactor(results, correctTraining.get(), factor);
   }
 
 
   protected Predictions predict(
       final BagOfPattern[] bagOfPatternsTestSamples,
       final BagOfPattern[] bagOfPatternsTrainSamples) {
+    return predict(bagOfPatternsTestSamples, new InvertedIndex(bagOfPatternsTrainSamples));
+  }
+
+  protected Predictions predict(
+      final BagOfPattern[] bagOfPatternsTestSamples,
+      final InvertedIndex index) {
+    return predict(bagOfPatternsTestSamples, index, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Predicts the labels using the 1-NN. Stops early, once more than maxErrors samples
+   * are misclassified. In this case, the predictions are incomplete and the number of
+   * correct predictions is at most bagOfPatternsTestSamples.length - maxErrors - 1.
+   */
+  protected Predictions predict(
+      final BagOfPattern[] bagOfPatternsTestSamples,
+      final InvertedIndex index,
+      final int maxErrors) {
 
     Predictions p = new Predictions(new Double[bagOfPatternsTestSamples.length], 0);
+    final AtomicInteger errors = new AtomicInteger(0);
 
-    ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
+    final int blocks = getExecutionContext().getBlocks();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
-        // iterate each sample to classify
-        for (int i = 0; i < bagOfPatternsTestSamples.length; i++) {
-          if (i % BLOCKS == id) {
-            long minDistance = Integer.MAX_VALUE;
-
-            // Distance if there is no matching word
-            double noMatchDistance = 0.0;
-            for (IntIntCursor key : bagOfPatternsTestSamples[i].bag) {
-              noMatchDistance += key.value * key.value;
-            }
-
-            nnSearch:
-            for (int j = 0; j < bagOfPatternsTrainSamples.length; j++) {
-              if (bagOfPatternsTestSamples[i] != bagOfPatternsTrainSamples[j]) {
-                // determine distance
-                long distance = 0;
-                for (IntIntCursor key : bagOfPatternsTestSamples[i].bag) {
-                  long buf = key.value - bagOfPatternsTrainSamples[j].bag.get(key.key);
-                  distance += buf * buf;
-
-                  if (distance >= minDistance) {
-                    continue nnSearch;
-                  }
-                }
+        long[] delta = new long[index.size()];
+        int[] touched = new int[index.size()];
+        boolean[] seen = new boolean[index.size()];
 
-                // update nearest neighbor
-                if (distance != noMatchDistance && distance < minDistance && distance > 0) {
-                  minDistance = distance;
-                  p.labels[i] = bagOfPatternsTrainSamples[j].label;
-                }
-              }
-            }
+        // iterate each sample to classify
+        for (int i = 0; i < bagOfPatternsTestSamples.length && errors.get() <= maxErrors; i++) {
+          if (i % blocks == id) {
+            p.labels[i] = index.nearestNeighbor(bagOfPatternsTestSamples[i], delta, touched, seen);
 
             // check if the prediction is correct
             if (compareLabels(bagOfPatternsTestSamples[i].label, p.labels[i])) {
               p.correct.incrementAndGet();
+            } else {
+              errors.incrementAndGet();
             }
           }
         }
@@ -245,12 +508,13 @@ public class BOSSEnsembleClassifier extends Classifier {
     final List<Integer> usedLengths = Collections.synchronizedList(new ArrayList<>(model.size()));
 
     // parallel execution
-    ParallelFor.withIndex(exec, threads, new ParallelFor.Each() {
+    final int blocks = getExecutionContext().getThreads();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
         // iterate each sample to classify
         for (int i = 0; i < model.size(); i++) {
-          if (i % threads == id) {
+          if (i % blocks == id) {
             final BOSSModel score = model.get(i);
             usedLengths.add(score.windowLength);
 
@@ -260,7 +524,7 @@ public class BOSSEnsembleClassifier extends Classifier {
             int[][] wordsTest = model.createWords(testSamples);
             BagOfPattern[] bagTest = model.createBagOfPattern(wordsTest, testSamples, score.features);
 
-            Predictions p = predict(bagTest, score.bag);
+            Predictions p = predict(bagTest, score.getIndex());
 
             for (int j = 0; j < p.labels.length; j++) {
               synchronized (testLabels[j]) {
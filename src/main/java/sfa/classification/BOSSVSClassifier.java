@@ -10,8 +10,10 @@ import sfa.transformation.BOSS.BagOfPattern;
 import sfa.transformation.BOSSVS;
 
 import com.carrotsearch.hppc.IntFloatHashMap;
+import com.carrotsearch.hppc.IntIntHashMap;
 import com.carrotsearch.hppc.ObjectObjectHashMap;
-import com.carrotsearch.hppc.cursors.IntIntCursor;
+import com.carrotsearch.hppc.cursors.IntFloatCursor;
+import com.carrotsearch.hppc.cursors.ObjectCursor;
 import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
 
 /**
@@ -58,6 +60,117 @@ public class BOSSVSClassifier extends Classifier {
 
     // the best number of Fourier values to be used
     public int features;
+
+    // the tf-idf vectors compiled for scoring, built on first use
+    transient CompiledTfIdf compiledIdf;
+
+    @SuppressWarnings("unchecked")
+    public synchronized CompiledTfIdf getCompiledTfIdf() {
+      if (this.compiledIdf == null) {
+        this.compiledIdf = new CompiledTfIdf((ObjectObjectHashMap<Double, IntFloatHashMap>) this.idf);
+      }
+      return this.compiledIdf;
+    }
+  }
+
+  /**
+   * The tf-idf vectors of all classes compiled for scoring: a single dictionary of word
+   * ids and a dense word-major matrix of the tf-idf values of all classes, such that
+   * scoring a bag needs one lookup per word. The class magnitudes are precomputed.
+   */
+  public static class CompiledTfIdf {
+    // the class labels in the iteration order of the tf-idf vectors
+    final Double[] labels;
+
+    // maps a word to its row in tfIdf
+    final IntIntHashMap wordIds;
+
+    // the tf-idf value of word id i and class c at i * labels.length + c
+    final float[] tfIdf;
+
+    final double[] magnitudes;
+
+    public CompiledTfIdf(ObjectObjectHashMap<Double, IntFloatHashMap> matrix) {
+      int nClasses = matrix.size();
+      this.labels = new Double[nClasses];
+      this.magnitudes = new double[nClasses];
+      this.wordIds = new IntIntHashMap();
+
+      int c = 0;
+      for (ObjectObjectCursor<Double, IntFloatHashMap> classEntry : matrix) {
+        this.labels[c] = classEntry.key;
+        this.magnitudes[c] = magnitude(classEntry.value.values());
+        for (IntFloatCursor word : classEntry.value) {
+          int index = this.wordIds.indexOf(word.key);
+          if (index < 0) {
+            this.wordIds.indexInsert(index, word.key, this.wordIds.size());
+          }
+        }
+        c++;
+      }
+
+      this.tfIdf = new float[this.wordIds.size() * nClasses];
+      c = 0;
+      for (ObjectCursor<IntFloatHashMap> classEntry : matrix.values()) {
+        for (IntFloatCursor word : classEntry.value) {
+          this.tfIdf[this.wordIds.get(word.key) * nClasses + c] = word.value;
+        }
+        c++;
+      }
+    }
+
+    /**
+     * Returns the label of the class with the highest cosine similarity to the bag,
+     * or null, if all similarities are 0.
+     *
+     * @param bag       the bag to classify
+     * @param distances scratch space for the similarity of each class
+     */
+    public Double predict(BagOfPattern bag, double[] distances) {
+      int nClasses = this.labels.length;
+      Arrays.fill(distances, 0, nClasses, 0.0);
+
+      // determine cosine similarity
+      int[] words = bag.words;
+      int[] counts = bag.counts;
+      for (int k = 0; k < words.length; k++) {
+        double wordInBagFreq = counts[k];
+        int index = this.wordIds.indexOf(words[k]);
+        if (index >= 0) {
+          int offset = this.wordIds.indexGet(index) * nClasses;
+          for (int c = 0; c < nClasses; c++) {
+            distances[c] += wordInBagFreq * (this.tfIdf[offset + c] + 1.0);
+          }
+        } else {
+          // the word is not part of any class
+          for (int c = 0; c < nClasses; c++) {
+            distances[c] += wordInBagFreq;
+          }
+        }
+      }
+
+      double bestDistance = 0.0;
+      Double label = null;
+      for (int c = 0; c < nClasses; c++) {
+        double distance = distances[c];
+
+        // norm by magnitudes
+        if (normMagnitudes) {
+          distance /= this.magnitudes[c];
+        }
+
+        // update nearest neighbor
+        if (distance > bestDistance) {
+          bestDistance = distance;
+          label = this.labels[c];
+        }
+      }
+      return label;
+    }
+
+    public int size() {
+      return this.labels.length;
+    }
   }
 
 
@@ -143,27 +256,31 @@ public class BOSSVSClassifier extends Classifier {
     final List<BossVSModel<IntFloatHashMap>> results = new ArrayList<>(windows.length);
     final AtomicInteger correctTraining = new AtomicInteger(0);
 
-    ParallelFor.withIndex(exec, threads, new ParallelFor.Each() {
+    final int blocks = getExecutionContext().getThreads();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       Set<Double> uniqueLabels = uniqueClassLabels(samples);
 
       @Override
       public void run(int id, AtomicInteger processed) {
         for (int i = 0; i < windows.length; i++) {
-          if (i % threads == id) {
+          if (i % blocks == id) {
             BossVSModel<IntFloatHashMap> model = new BossVSModel<>(normMean, windows[i]);
             try {
               BOSSVS bossvs = new BOSSVS(maxF, maxS, windows[i], model.normed);
+              bossvs.setExecutionContext(getExecutionContext());
               int[][] words = bossvs.createWords(samples);
 
               for (int f = minF; f <= Math.min(model.windowLength, maxF); f += 2) {
                 BagOfPattern[] bag = bossvs.createBagOfPattern(words, samples, f);
+                ObjectObjectHashMap<Double, IntFloatHashMap> wordFrequencies =
+                        bossvs.createWordFrequencies(bag, this.uniqueLabels);
 
                 // cross validation using folds
                 int correct = 0;
                 for (int s = 0; s < folds; s++) {
-                  // calculate the tf-idf for each class
-                  ObjectObjectHashMap<Double, IntFloatHashMap> idf = bossvs.createTfIdf(bag,
-                          BOSSVSClassifier.this.trainIndices[s], this.uniqueLabels);
+                  // calculate the tf-idf for each class, leaving out the test fold
+                  ObjectObjectHashMap<Double, IntFloatHashMap> idf = bossvs.createTfIdf(wordFrequencies,
+                          bag, BOSSVSClassifier.this.testIndices[s], this.uniqueLabels);
 
                   correct += predict(BOSSVSClassifier.this.testIndices[s], bag, idf).correct.get();
                 }
@@ -213,42 +330,26 @@ public class BOSSVSClassifier extends Classifier {
           final int[] indices,
           final BagOfPattern[] bagOfPatternsTestSamples,
           final ObjectObjectHashMap<Double, IntFloatHashMap> matrixTrain) {
+    return predict(indices, bagOfPatternsTestSamples, new CompiledTfIdf(matrixTrain));
+  }
+
+  protected Predictions predict(
+          final int[] indices,
+          final BagOfPattern[] bagOfPatternsTestSamples,
+          final CompiledTfIdf matrixTrain) {
 
     Predictions p = new Predictions(new Double[bagOfPatternsTestSamples.length], 0);
 
-    ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
+    final int blocks = getExecutionContext().getBlocks();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
+        double[] distances = new double[matrixTrain.size()];
+
         // iterate each sample to classify
         for (int i : indices) {
-          if (i % BLOCKS == id) {
-            double bestDistance = 0.0;
-
-            // for each class
-            for (ObjectObjectCursor<Double, IntFloatHashMap> classEntry : matrixTrain) {
-
-              Double label = classEntry.key;
-              IntFloatHashMap stat = classEntry.value;
-
-              // determine cosine similarity
-              double distance = 0.0;
-              for (IntIntCursor wordFreq : bagOfPatternsTestSamples[i].bag) {
-                double wordInBagFreq = wordFreq.value;
-                double value = stat.get(wordFreq.key);
-                distance += wordInBagFreq * (value + 1.0);
-              }
-
-              // norm by magnitudes
-              if (normMagnitudes) {
-                distance /= magnitude(stat.values());
-              }
-
-              // update nearest neighbor
-              if (distance > bestDistance) {
-                bestDistance = distance;
-                p.labels[i] = label;
-              }
-            }
+          if (i % blocks == id) {
+            p.labels[i] = matrixTrain.predict(bagOfPatternsTestSamples[i], distances);
 
             // check if the prediction is correct
             if (compareLabels(bagOfPatternsTestSamples[i].label, p.labels[i])) {
@@ -273,12 +374,13 @@ public class BOSSVSClassifier extends Classifier {
     final int[] indicesTest = createIndices(testSamples.length);
 
     // parallel execution
-    ParallelFor.withIndex(exec, threads, new ParallelFor.Each() {
+    final int blocks = getExecutionContext().getThreads();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
         // iterate each sample to classify
         for (int i = 0; i < model.size(); i++) {
-          if (i % threads == id) {
+          if (i % blocks == id) {
             final BossVSModel<IntFloatHashMap> score = model.get(i);
             usedLengths.add(score.windowLength);
 
@@ -288,7 +390,7 @@ public class BOSSVSClassifier extends Classifier {
             int[][] wordsTest = model.createWords(testSamples);
             BagOfPattern[] bagTest = model.createBagOfPattern(wordsTest, testSamples, score.features);
 
-            Predictions p = predict(indicesTest, bagTest, score.idf);
+            Predictions p = predict(indicesTest, bagTest, score.getCompiledTfIdf());
 
             for (int j = 0; j < p.labels.length; j++) {
               synchronized (testLabels[j]) {
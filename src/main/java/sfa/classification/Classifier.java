@@ -11,8 +11,6 @@ import java.lang.management.ManagementFactory;
 import java.text.MessageFormat;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import libsvm.*;
@@ -37,43 +35,54 @@ import de.bwaldvogel.liblinear.Problem;
 import de.bwaldvogel.liblinear.SolverType;
 
 public abstract class Classifier {
-  transient ExecutorService exec;
+  // the threads for the parallel work, or null for the default context
+  private transient ExecutionContext context;
 
   public static boolean[] NORMALIZATION = new boolean[]{true, false};
 
   public static boolean DEBUG = false;
   public static boolean ENSEMBLE_WEIGHTS = true;
 
+  // liblinear and libsvm each draw from a single static random generator, see trainLinear
+  private static final Object LIBLINEAR_LOCK = new Object();
+  private static final Object LIBSVM_LOCK = new Object();
+
+  // the number of threads of the default execution context, see ExecutionContext.getDefault
   public static int threads = 1;
 
+  /**
+   * @deprecated the number of blocks depends on the threads of the execution context,
+   * see ExecutionContext.getBlocks
+   */
+  @Deprecated
+  public final static int BLOCKS = 8;
+
   protected int[][] testIndices;
   protected int[][] trainIndices;
   public static int folds = 10;
 
-  // Blocks for parallel execution
-  public final static int BLOCKS = 8;
-
   static {
     Runtime runtime = Runtime.getRuntime();
     if (runtime.availableProcessors() <= 4) {
-      threads = runtime.availableProcessors() - 1;
+      threads = Math.max(1, runtime.availableProcessors() - 1);
     } else {
       threads = runtime.availableProcessors();
     }
   }
 
   public Classifier() {
-    this.exec = Executors.newFixedThreadPool(threads);
   }
 
   /**
-   * Invokes {@code shutdown} when this executor is no longer
-   * referenced and it has no threads.
+   * The execution context of the parallel work of this classifier, and of the
+   * transformations it creates.
    */
-  protected void finalize() {
-    if (exec != null) {
-      exec.shutdown();
-    }
+  public ExecutionContext getExecutionContext() {
+    return this.context != null ? this.context : ExecutionContext.getDefault();
+  }
+
+  public void setExecutionContext(ExecutionContext context) {
+    this.context = context;
   }
 
   /**
@@ -351,8 +360,15 @@ public abstract class Classifier {
   }
 
 
+  protected static int trainLibLinear(
+      final Problem prob, final SolverType solverType, double c,
+      int iter, double p, int nr_fold) {
+    return trainLibLinear(ExecutionContext.getDefault(), prob, solverType, c, iter, p, nr_fold);
+  }
+
   @SuppressWarnings("static-access")
   protected static int trainLibLinear(
+      final ExecutionContext context,
       final Problem prob, final SolverType solverType, double c,
       int iter, double p, int nr_fold) {
     final Parameter param = new Parameter(solverType, c, iter, p);
@@ -384,16 +400,12 @@ public abstract class Classifier {
     final AtomicInteger correct = new AtomicInteger(0);
 
     final int fold = nr_fold;
-    ParallelFor.withIndex(threads, new ParallelFor.Each() {
+    final int blocks = context.getThreads();
+    context.withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
-        ThreadLocal<Linear> myLinear = new ThreadLocal<>();
-        myLinear.set(new Linear());
-        myLinear.get().disableDebugOutput();
-        myLinear.get().resetRandom(); // reset random component of liblinear for reproducibility
-
         for (int i = 0; i < fold; i++) {
-          if (i % threads == id) {
+          if (i % blocks == id) {
 
             int begin = fold_start[i];
             int end = fold_start[i + 1];
@@ -418,9 +430,9 @@ public abstract class Classifier {
               ++k;
             }
 
-            de.bwaldvogel.liblinear.Model submodel = myLinear.get().train(subprob, param);
+            de.bwaldvogel.liblinear.Model submodel = trainLinear(subprob, param);
             for (j = begin; j < end; j++) {
-              correct.addAndGet(prob.y[perm[j]] == myLinear.get().predict(submodel, prob.x[perm[j]]) ? 1 : 0);
+              correct.addAndGet(prob.y[perm[j]] == Linear.predict(submodel, prob.x[perm[j]]) ? 1 : 0);
             }
           }
         }
@@ -429,6 +441,41 @@ public abstract class Classifier {
     return correct.get();
   }
 
+  /**
+   * Trains a liblinear model. The dual and L1 solvers of liblinear draw from its static
+   * random generator, which is reset before each training for reproducibility. These
+   * trainings are serialised, such that concurrent fits do not change each other's models.
+   * The primal L2 solvers do not draw random numbers and train concurrently.
+   */
+  public static de.bwaldvogel.liblinear.Model trainLinear(Problem problem, Parameter parameter) {
+    switch (parameter.getSolverType()) {
+      case L2R_LR:
+      case L2R_L2LOSS_SVC:
+      case L2R_L2LOSS_SVR:
+        return Linear.train(problem, parameter);
+      default:
+        synchronized (LIBLINEAR_LOCK) {
+          Linear.resetRandom();
+          return Linear.train(problem, parameter);
+        }
+    }
+  }
+
+  /**
+   * Trains a libsvm model. libsvm only draws from its static random generator for
+   * probability estimates, which is reset before each such training. These trainings are
+   * serialised, as in trainLinear.
+   */
+  public static svm_model trainSVM(svm_problem problem, svm_parameter parameter) {
+    if (parameter.probability == 0) {
+      return svm.svm_train(problem, parameter);
+    }
+    synchronized (LIBSVM_LOCK) {
+      svm.rand.setSeed(1);
+      return svm.svm_train(problem, parameter);
+    }
+  }
+
   private static void swap(int[] array, int idxA, int idxB) {
     int temp = array[idxA];
     array[idxA] = array[idxB];
@@ -442,6 +489,16 @@ public abstract class Classifier {
       int nr_fold,
       final Double[] target,
       Random rand) {
+    trainSVMOneClass(ExecutionContext.getDefault(), prob, param, nr_fold, target, rand);
+  }
+
+  public static void trainSVMOneClass(
+      final ExecutionContext context,
+      final svm_problem prob,
+      final svm_parameter param,
+      int nr_fold,
+      final Double[] target,
+      Random rand) {
     final int[] fold_start = new int[nr_fold + 1];
     final int l = prob.l;
     final int[] perm = new int[l];
@@ -462,14 +519,12 @@ public abstract class Classifier {
     }
 
     final int fold = nr_fold;
-    ParallelFor.withIndex(threads, new ParallelFor.Each() {
+    final int blocks = context.getThreads();
+    context.withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
-        final ThreadLocal<svm> mySVM = new ThreadLocal<svm>();
-        mySVM.set(new svm());
-
         for (int i = 0; i < fold; i++) {
-          if (i % threads == id) {
+          if (i % blocks == id) {
             final int begin = fold_start[i];
             final int end = fold_start[i + 1];
             final svm_problem subprob = new svm_problem();
@@ -489,9 +544,9 @@ public abstract class Classifier {
               subprob.y[k] = prob.y[perm[j]];
               ++k;
             }
-            final svm_model submodel = mySVM.get().svm_train(subprob, param);
+            final svm_model submodel = trainSVM(subprob, param);
             for (int j = begin; j < end; j++) {
-                target[perm[j]] = mySVM.get().svm_predict(submodel, prob.x[perm[j]]);
+                target[perm[j]] = svm.svm_predict(submodel, prob.x[perm[j]]);
             }
           }
         }
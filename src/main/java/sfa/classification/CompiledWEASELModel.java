@@ -0,0 +1,253 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import com.carrotsearch.hppc.BitMixer;
+import com.carrotsearch.hppc.cursors.IntIntCursor;
+import com.carrotsearch.hppc.cursors.LongIntCursor;
+import de.bwaldvogel.liblinear.SolverType;
+import sfa.classification.Classifier.Words;
+import sfa.timeseries.TimeSeries;
+import sfa.transformation.SFA;
+import sfa.transformation.WEASEL;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A trained WEASEL model compiled for inference. The dictionary and the liblinear
+ * weights are flattened into an open-addressing table, that maps each surviving
+ * uni- and bigram directly to its class weights. Together with the SFA
+ * quantization of each window length, a sample is scored while streaming its
+ * SFA words, without building a bag of patterns.
+ * <p>
+ * The compiled model holds deep copies of the SFA quantizations, thus it does not
+ * change with the source model, and can be shared by concurrent threads.
+ */
+public class CompiledWEASELModel implements Serializable {
+  private static final long serialVersionUID = -2218421876418365337L;
+
+  // marks an empty slot: all uni- and bigram keys are positive
+  private static final long EMPTY = -1L;
+
+  // the window lengths and their SFA quantization (bins)
+  final int[] windowLengths;
+  final SFA[] signature;
+
+  // the SFA word length and the key layout of WEASEL
+  final int maxF;
+  final int wordLength;
+  final long mask;
+  final int highestBit;
+  final int hashBits;
+
+  // open-addressing table of uni- and bigrams to the nrW weights of each key
+  final long[] keys;
+  final float[] weights;
+  final int size;
+
+  // liblinear decision rule
+  final int[] labels;
+  final int nrClass;
+  final int nrW;
+
+  /**
+   * Compiles a trained WEASEL model.
+   *
+   * @param model the trained WEASEL model
+   */
+  public CompiledWEASELModel(WEASELClassifier.WEASELModel model) {
+    WEASEL weasel = model.weasel;
+    de.bwaldvogel.liblinear.Model linearModel = model.linearModel;
+
+    this.windowLengths = weasel.windowLengths.clone();
+    this.signature = copy(weasel.signature);
+    this.maxF = weasel.maxF;
+    this.wordLength = model.features;
+    this.mask = (1L << (Words.binlog(weasel.alphabetSize) * model.features)) - 1L;
+    this.highestBit = Words.binlog(Integer.highestOneBit(WEASELClassifier.MAX_WINDOW_LENGTH)) + 1;
+    this.hashBits = weasel.hashBits;
+
+    this.labels = linearModel.getLabels().clone();
+    this.nrClass = linearModel.getNrClass();
+    this.nrW = this.nrClass == 2 && linearModel.getSolverType() != SolverType.MCSVM_CS ? 1 : this.nrClass;
+    double[] w = linearModel.getFeatureWeights();
+
+    // collect the keys of the dictionary and their feature indices
+    long[] dictKeys;
+    int[] dictIndices;
+    WEASEL.Dictionary dict = weasel.dict;
+    if (dict.hashBits > 0) {
+      int buckets = 1 << dict.hashBits;
+      dictKeys = new long[dict.buckets.size()];
+      dictIndices = new int[dictKeys.length];
+      int i = 0;
+      for (IntIntCursor bucket : dict.buckets) {
+        dictKeys[i] = bucket.key < buckets ? bucket.key : WEASEL.HASHED_BIGRAM | (bucket.key - buckets);
+        dictIndices[i++] = bucket.value;
+      }
+    } else {
+      dictKeys = new long[dict.dict.size()];
+      dictIndices = new int[dictKeys.length];
+      int i = 0;
+      for (LongIntCursor word : dict.dict) {
+        dictKeys[i] = word.key;
+        dictIndices[i++] = word.value;
+      }
+    }
+
+    // features without any weight do not contribute to the scores
+    int count = 0;
+    for (int i = 0; i < dictKeys.length; i++) {
+      if (hasWeights(dictIndices[i], w)) {
+        dictKeys[count] = dictKeys[i];
+        dictIndices[count++] = dictIndices[i];
+      }
+    }
+
+    // load factor of at most 0.5
+    int capacity = Integer.highestOneBit(Math.max(8, count) * 2 - 1) << 1;
+    this.keys = new long[capacity];
+    Arrays.fill(this.keys, EMPTY);
+    this.weights = new float[capacity * this.nrW];
+    for (int i = 0; i < count; i++) {
+      int slot = (int) BitMixer.mix64(dictKeys[i]) & (capacity - 1);
+      while (this.keys[slot] != EMPTY) {
+        slot = (slot + 1) & (capacity - 1);
+      }
+      this.keys[slot] = dictKeys[i];
+      int offset = (dictIndices[i] - 1) * this.nrW;
+      for (int c = 0; c < this.nrW; c++) {
+        this.weights[slot * this.nrW + c] = (float) w[offset + c];
+      }
+    }
+    this.size = count;
+  }
+
+  /**
+   * Deep copies the SFA quantizations, such that the compiled model does not share
+   * any mutable state with the trained model.
+   */
+  private static SFA[] copy(SFA[] signature) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+        out.writeObject(signature);
+      }
+      try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+        return (SFA[]) in.readObject();
+      }
+    } catch (IOException | ClassNotFoundException e) {
+      throw new RuntimeException("Could not copy the SFA quantization", e);
+    }
+  }
+
+  private boolean hasWeights(int index, double[] w) {
+    int offset = (index - 1) * this.nrW;
+    if (index <= 0 || offset + this.nrW > w.length) {
+      return false;
+    }
+    for (int c = 0; c < this.nrW; c++) {
+      if (w[offset + c] != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The number of uni- and bigrams with weights.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Predicts the label of a single sample.
+   *
+   * @param sample the sample to classify
+   * @return the predicted label
+   */
+  public Double predict(TimeSeries sample) {
+    return predict(score(sample, new double[this.nrW]));
+  }
+
+  /**
+   * Applies the liblinear decision rule to the scores of a sample.
+   *
+   * @param scores the scores computed by score
+   * @return the predicted label
+   */
+  public Double predict(double[] scores) {
+    if (this.nrClass == 2 && this.nrW == 1) {
+      return (double) (scores[0] > 0 ? this.labels[0] : this.labels[1]);
+    }
+    int best = 0;
+    for (int c = 1; c < this.nrClass; c++) {
+      if (scores[c] > scores[best]) {
+        best = c;
+      }
+    }
+    return (double) this.labels[best];
+  }
+
+  /**
+   * Computes the linear decision values of a single sample by streaming the SFA
+   * words of all window lengths through the weight table.
+   *
+   * @param sample the sample to classify
+   * @param scores holds at least nrW values, is reset and filled with the scores
+   * @return the scores
+   */
+  public double[] score(TimeSeries sample, double[] scores) {
+    Arrays.fill(scores, 0, this.nrW, 0.0);
+    for (int w = 0; w < this.windowLengths.length; w++) {
+      if (sample.getLength() >= this.windowLengths[w]) {
+        int[] words = this.signature[w].transformWindowingInt(sample, this.maxF);
+        score(words, w, scores);
+      }
+    }
+    return scores;
+  }
+
+  /**
+   * Adds the weights of all uni- and bigrams of the SFA words of window length
+   * index w to the scores.
+   */
+  void score(int[] words, int w, double[] scores) {
+    int windowLength = this.windowLengths[w];
+    for (int offset = 0; offset < words.length; offset++) {
+      long word = (words[offset] & this.mask) << this.highestBit | (long) w;
+      addWeights(WEASEL.hashUnigram(word, this.hashBits), scores);
+
+      // add 2 grams
+      if (offset - windowLength >= 0) {
+        long prevWord = (words[offset - windowLength] & this.mask);
+        if (prevWord != 0) {
+          addWeights(WEASEL.hashBigram(prevWord << 32 | word, this.hashBits), scores);
+        }
+      }
+    }
+  }
+
+  private void addWeights(long key, double[] scores) {
+    int capacityMask = this.keys.length - 1;
+    int slot = (int) BitMixer.mix64(key) & capacityMask;
+    long existing;
+    while ((existing = this.keys[slot]) != EMPTY) {
+      if (existing == key) {
+        int offset = slot * this.nrW;
+        for (int c = 0; c < this.nrW; c++) {
+          scores[c] += this.weights[offset + c];
+        }
+        return;
+      }
+      slot = (slot + 1) & capacityMask;
+    }
+  }
+}
@@ -0,0 +1,240 @@
+// Copyright (c) 2016 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+import sfa.timeseries.TimeSeries;
+
+/**
+ * Computes the Euclidean distances of a query window to all sliding windows of a set of
+ * samples at once (a distance profile), as in the MASS algorithm:
+ * <p>
+ * Mueen, A., Zhu, Y., Yeh, M., Kamgar, K., Viswanathan, K., Gupta, C., Keogh, E.:
+ * The Fastest Similarity Search Algorithm for Time Series Subsequences under Euclidean
+ * Distance. 2017.
+ * <p>
+ * The sliding dot products of the query with a sample are obtained from a single
+ * multiplication in the frequency domain, and the distances follow from the dot products
+ * and the cumulative sums of the sample in O(n log n) instead of O(n * w).
+ * <p>
+ * The cumulative sums of the samples do not depend on the window length, and also provide
+ * the means and standard deviations of all sliding windows of any length. Thus, a single
+ * instance is shared by all window lengths and concurrent threads. The transforms of the
+ * samples and the FFTs are only computed, once the first window length uses distance
+ * profiles (see prepareTransforms), and before its concurrent searches start, such that
+ * these do not synchronize.
+ */
+public class DistanceProfile {
+
+  private final TimeSeries[] samples;
+
+  // the FFTs of all samples, zero padded to the next power of two of their length, or null
+  // until prepared
+  private volatile double[][] transforms;
+
+  // cumulative sums and sums of squares of all samples
+  private final double[][] cumSums;
+  private final double[][] cumSquares;
+
+  // one FFT per power of two, indexed by its binary logarithm
+  private final DoubleFFT_1D[] ffts = new DoubleFFT_1D[32];
+
+  /**
+   * Computes the cumulative sums of the samples.
+   *
+   * @param samples the samples to compute distance profiles for
+   */
+  public DistanceProfile(TimeSeries[] samples) {
+    this.samples = samples;
+    this.cumSums = new double[samples.length][];
+    this.cumSquares = new double[samples.length][];
+
+    for (int j = 0; j < samples.length; j++) {
+      double[] data = samples[j].getData();
+      this.cumSums[j] = new double[data.length + 1];
+      this.cumSquares[j] = new double[data.length + 1];
+      for (int t = 0; t < data.length; t++) {
+        this.cumSums[j][t + 1] = this.cumSums[j][t] + data[t];
+        this.cumSquares[j][t + 1] = this.cumSquares[j][t] + data[t] * data[t];
+      }
+    }
+  }
+
+  /**
+   * Computes the transforms of the samples, unless done before. Must be called before the
+   * distances are computed, and before these are computed by concurrent threads.
+   */
+  public synchronized void prepareTransforms() {
+    if (this.transforms != null) {
+      return;
+    }
+    double[][] transforms = new double[this.samples.length][];
+    for (int j = 0; j < this.samples.length; j++) {
+      double[] data = this.samples[j].getData();
+
+      // the FFT of each length is created once
+      int fftLength = nextPowerOfTwo(data.length);
+      int log = Integer.numberOfTrailingZeros(fftLength);
+      if (this.ffts[log] == null) {
+        this.ffts[log] = new DoubleFFT_1D(fftLength);
+      }
+      transforms[j] = new double[fftLength];
+      System.arraycopy(data, 0, transforms[j], 0, data.length);
+      this.ffts[log].realForward(transforms[j]);
+    }
+    this.transforms = transforms;
+  }
+
+  boolean isPrepared() {
+    return this.transforms != null;
+  }
+
+  /**
+   * Gets the means and the inverse standard deviations of all sliding windows of each
+   * sample. Samples shorter than the window length form a single window.
+   *
+   * @param windowLength the window length
+   * @param means        holds the means of each sample, or 0 if normMean is false
+   * @param stds         holds the inverse standard deviations of each sample, or 1 if a
+   *                     window is constant
+   * @param normMean     whether the mean is subtracted
+   */
+  public void calcMeansStds(int windowLength, double[][] means, double[][] stds, boolean normMean) {
+    for (int j = 0; j < this.samples.length; j++) {
+      double[] cumSum = this.cumSums[j];
+      double[] cumSquare = this.cumSquares[j];
+      int length = this.samples[j].getLength();
+      int w = Math.min(windowLength, length);
+
+      // it is faster to multiply than to divide
+      double rWindowLength = 1.0 / w;
+
+      means[j] = new double[length - w + 1];
+      stds[j] = new double[length - w + 1];
+      for (int offset = 0; offset < means[j].length; offset++) {
+        double mean = (cumSum[offset + w] - cumSum[offset]) * rWindowLength;
+        double buf = (cumSquare[offset + w] - cumSquare[offset]) * rWindowLength - mean * mean;
+        stds[j][offset] = buf > 0 ? 1.0 / Math.sqrt(buf) : 1.0;
+        means[j][offset] = normMean ? mean : 0;
+      }
+    }
+  }
+
+  /**
+   * A query window, which lazily holds its transform for each FFT length.
+   * A query must not be shared by concurrent threads.
+   */
+  public class Query {
+    private final double[] data;
+    private final double sum;
+    private final double squares;
+    private final double[][] transforms = new double[32][];
+
+    public Query(double[] data) {
+      this.data = data;
+      double sum = 0.0;
+      double squares = 0.0;
+      for (double value : data) {
+        sum += value;
+        squares += value * value;
+      }
+      this.sum = sum;
+      this.squares = squares;
+    }
+
+    public int getLength() {
+      return this.data.length;
+    }
+
+    /**
+     * The FFT of the reversed and zero padded query.
+     */
+    private double[] getTransform(int fftLength) {
+      int log = Integer.numberOfTrailingZeros(fftLength);
+      if (this.transforms[log] == null) {
+        double[] reversed = new double[fftLength];
+        for (int t = 0; t < this.data.length; t++) {
+          reversed[t] = this.data[this.data.length - 1 - t];
+        }
+        getFFT(fftLength).realForward(reversed);
+        this.transforms[log] = reversed;
+      }
+      return this.transforms[log];
+    }
+  }
+
+  /**
+   * Computes the distances of the query to the first windows of sample j, each window
+   * being normalized as (x - mean) * stds, that is stds holds inverse deviations.
+   *
+   * @param query     the query window
+   * @param j         the index of the sample
+   * @param means     the mean of each window
+   * @param stds      the inverse standard deviation of each window
+   * @param distances holds the squared Euclidean distance of each window
+   * @param windows   the number of windows to compute distances for
+   * @return the minimal distance
+   */
+  public double getDistances(Query query, int j, double[] means, double[] stds, double[] distances, int windows) {
+    double[] dotProducts = getSlidingDotProducts(query, j);
+    double[] cumSum = this.cumSums[j];
+    double[] cumSquare = this.cumSquares[j];
+    int length = query.getLength();
+
+    double minDistance = Double.MAX_VALUE;
+    for (int w = 0; w < windows; w++) {
+      double mean = means[w];
+      double std = stds[w];
+      double sum = cumSum[w + length] - cumSum[w];
+      double squares = cumSquare[w + length] - cumSquare[w];
+
+      // sum of (q - (x - mean) * std)^2 expanded into the precomputed sums
+      double distance = query.squares
+          - 2 * std * (dotProducts[w + length - 1] - mean * query.sum)
+          + std * std * (squares - 2 * mean * sum + length * mean * mean);
+      distances[w] = Math.max(distance, 0.0);
+      minDistance = Math.min(minDistance, distances[w]);
+    }
+    return minDistance;
+  }
+
+  /**
+   * The dot products of the query with all windows of sample j. The dot product with the
+   * window starting at offset w is found at w + query length - 1. Requires the transforms
+   * to be prepared.
+   */
+  protected double[] getSlidingDotProducts(Query query, int j) {
+    double[] transform = this.transforms[j];
+    double[] queryTransform = query.getTransform(transform.length);
+    int n = transform.length;
+
+    // complex multiplication in the packed format of JTransforms
+    double[] product = new double[n];
+    product[0] = transform[0] * queryTransform[0];
+    if (n > 1) {
+      product[1] = transform[1] * queryTransform[1];
+    }
+    for (int k = 2; k < n; k += 2) {
+      double real = transform[k];
+      double imag = transform[k + 1];
+      double queryReal = queryTransform[k];
+      double queryImag = queryTransform[k + 1];
+      product[k] = real * queryReal - imag * queryImag;
+      product[k + 1] = real * queryImag + imag * queryReal;
+    }
+
+    getFFT(n).realInverse(product, true);
+    return product;
+  }
+
+  /**
+   * The FFT of a length, that is the transform length of one of the samples.
+   */
+  private DoubleFFT_1D getFFT(int fftLength) {
+    return this.ffts[Integer.numberOfTrailingZeros(fftLength)];
+  }
+
+  private static int nextPowerOfTwo(int length) {
+    return Math.max(2, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+  }
+}
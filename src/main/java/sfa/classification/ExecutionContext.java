@@ -0,0 +1,151 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The threads used by classifiers and transformations for their parallel work.
+ * <p>
+ * A context has a thread budget and runs either on a work stealing pool of its own, or on
+ * an executor provided by the caller, e.g. a virtual thread per task executor. A single
+ * context may be shared by any number of concurrent fits and predictions, which then share
+ * its threads instead of each creating their own.
+ * <p>
+ * The thread calling a parallel loop takes part in its work, and only waits for blocks
+ * already running on other threads (see ParallelFor). Thus, parallel loops may be nested
+ * on a bounded pool without a deadlock.
+ */
+public class ExecutionContext implements AutoCloseable {
+
+  private final ExecutorService executor;
+  private final int threads;
+
+  // whether the executor is owned by the context, and shut down on close
+  private final boolean owned;
+
+  private static ExecutionContext defaultContext = null;
+
+  // whether the default context was created from Classifier.threads, rather than set
+  private static boolean defaultCreated = false;
+
+  /**
+   * Creates a context with a work stealing pool of its own.
+   *
+   * @param threads the number of threads of the pool
+   */
+  public ExecutionContext(int threads) {
+    this(new ForkJoinPool(Math.max(1, threads)), threads, true);
+  }
+
+  /**
+   * Creates a context running on the executor of the caller. The executor is not shut down
+   * by close.
+   *
+   * @param executor the executor to run the parallel work on
+   * @param threads  the thread budget, i.e. the number of threads parallel work is split for
+   */
+  public ExecutionContext(ExecutorService executor, int threads) {
+    this(executor, threads, false);
+  }
+
+  private ExecutionContext(ExecutorService executor, int threads, boolean owned) {
+    this.executor = executor;
+    this.threads = Math.max(1, threads);
+    this.owned = owned;
+  }
+
+  /**
+   * The context of all classifiers and transformations, that are not assigned a context.
+   * Unless set, it is created on first use with Classifier.threads threads, and created
+   * anew once Classifier.threads changes. The previous pool is not shut down, as fits may
+   * still run on it, but its idle threads are reclaimed.
+   */
+  public static synchronized ExecutionContext getDefault() {
+    if (defaultContext == null
+        || defaultContext.executor.isShutdown()
+        || (defaultCreated && defaultContext.threads != Math.max(1, Classifier.threads))) {
+      defaultContext = new ExecutionContext(Classifier.threads);
+      defaultCreated = true;
+    }
+    return defaultContext;
+  }
+
+  /**
+   * Sets the default context, which is then kept regardless of Classifier.threads.
+   */
+  public static synchronized void setDefault(ExecutionContext context) {
+    defaultContext = context;
+    defaultCreated = false;
+  }
+
+  /**
+   * The thread budget.
+   */
+  public int getThreads() {
+    return this.threads;
+  }
+
+  /**
+   * The number of blocks parallel loops are split into: 8 for up to 4 threads, such that
+   * blocks of unequal cost are balanced, and one per thread otherwise.
+   */
+  public int getBlocks() {
+    return this.threads <= 4 ? 8 : this.threads;
+  }
+
+  public ExecutorService getExecutor() {
+    return this.executor;
+  }
+
+  /**
+   * Runs the body for each index from 0 to blocks - 1 in parallel.
+   *
+   * @return the number processed, as counted by the body
+   */
+  public int withIndex(int blocks, ParallelFor.Each body) {
+    return ParallelFor.withIndex(this.executor, blocks, body);
+  }
+
+  /**
+   * Runs all tasks in parallel and returns, once all are done. If a task fails, the
+   * first failure is rethrown after all tasks are done.
+   */
+  public void invokeAll(final List<? extends Runnable> tasks) {
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    withIndex(tasks.size(), new ParallelFor.Each() {
+      @Override
+      public void run(int i, AtomicInteger processed) {
+        try {
+          tasks.get(i).run();
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      }
+    });
+
+    Throwable e = failure.get();
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    } else if (e instanceof Error) {
+      throw (Error) e;
+    } else if (e != null) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Shuts down the pool of the context, if it was created by the context. Parallel work
+   * still running is completed.
+   */
+  @Override
+  public void close() {
+    if (this.owned) {
+      this.executor.shutdown();
+    }
+  }
+}
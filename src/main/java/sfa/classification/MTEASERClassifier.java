@@ -8,6 +8,7 @@ import sfa.timeseries.MultiVariateTimeSeries;
 import sfa.timeseries.TimeSeries;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TEASER: A framework for early and accurate times series classification
@@ -65,20 +66,49 @@ public class MTEASERClassifier extends Classifier {
 
     public int[] offsets;
     public int threshold;
+
+    // one MUSE classifier per offset, each holding the slave model of its offset
+    private transient MUSEClassifier[] slaveClassifiers;
+    private transient ExecutionContext slaveContext;
+
+    /**
+     * The slave classifiers of all offsets. A slave classifier is never assigned another
+     * model, and thus may be shared by concurrent predictions. The slave classifiers are
+     * created again, if asked for by a different execution context.
+     */
+    public synchronized MUSEClassifier[] getSlaveClassifiers(ExecutionContext context) {
+      if (this.slaveClassifiers == null || this.slaveContext != context) {
+        MUSEClassifier[] slaveClassifiers = new MUSEClassifier[this.slaveModels.length];
+        for (int s = 0; s < this.slaveModels.length; s++) {
+          if (this.slaveModels[s] != null) {
+            slaveClassifiers[s] = new MUSEClassifier();
+            slaveClassifiers[s].setModel(this.slaveModels[s]);
+            slaveClassifiers[s].setExecutionContext(context);
+          }
+        }
+        this.slaveClassifiers = slaveClassifiers;
+        this.slaveContext = context;
+      }
+      return this.slaveClassifiers;
+    }
   }
 
 
-  class OffsetPrediction {
+  static class OffsetPrediction {
     double offset;
     Double[] labels;
     int correct;
     int N;
 
-    public OffsetPrediction(double offset, Double[] labels, int correct, int N) {
+    // the offset each sample was decided at
+    int[] offsets;
+
+    public OffsetPrediction(double offset, Double[] labels, int correct, int N, int[] offsets) {
       this.offset = offset;
       this.correct = correct;
       this.labels = labels;
       this.N = N;
+      this.offsets = offsets;
     }
 
     public int getCorrect() {
@@ -132,7 +162,7 @@ public class MTEASERClassifier extends Classifier {
     }
 
     // determine score
-    OffsetPrediction pred = predict(testSamples, true);
+    OffsetPrediction pred = predict(testSamples, true, model.threshold);
     int correctTesting = pred.getCorrect();
 
     if (DEBUG) {
@@ -166,6 +196,7 @@ public class MTEASERClassifier extends Classifier {
       double step = max / S; // steps of 5%
 
       this.model = new EarlyClassificationModel();
+      this.slaveClassifier.setExecutionContext(getExecutionContext());
 
       for (int s = 2; s <= S; s++) {
         // train TEASER
@@ -187,13 +218,12 @@ public class MTEASERClassifier extends Classifier {
       double bestF1 = -1;
       int bestCount = 1;
       for (int i = 2; i <= 5; i++) {
-        model.threshold = i;
-        OffsetPrediction off = predict(samples, false);
+        OffsetPrediction off = predict(samples, false, i);
         double correct = ((double) off.getCorrect()) / off.N;
         double earliness = 1.0 - off.offset / off.N;
 
         double harmonic_mean = 2 * correct * earliness / (correct + earliness);
-        System.out.println("Prediction:\t" + model.threshold + "\t" + off + "\t" + harmonic_mean);
+        System.out.println("Prediction:\t" + i + "\t" + off + "\t" + harmonic_mean);
 
         if (bestF1 < harmonic_mean) {
           bestF1 = harmonic_mean;
@@ -250,7 +280,7 @@ public class MTEASERClassifier extends Classifier {
       }
       ;
       Double[] predictions = new Double[problem_one_class.l];
-      trainSVMOneClass(problem_one_class, parameter, 10, predictions, new Random(1));
+      trainSVMOneClass(getExecutionContext(), problem_one_class, parameter, 10, predictions, new Random(1));
       double correct2 = evalLabels(problem_one_class.y, predictions).correct.get() / (double) problem_one_class.l;
 
       if (correct2 > bestCorrect) {
@@ -258,7 +288,7 @@ public class MTEASERClassifier extends Classifier {
         bestCorrect = correct2;
       }
     }
-    return svm.svm_train(problem_one_class, best_parameter);
+    return trainSVM(problem_one_class, best_parameter);
   }
 
   public MultiVariateTimeSeries[] extractUntilOffset(MultiVariateTimeSeries[] samples, int offset, boolean testing) {
@@ -273,7 +303,7 @@ public class MTEASERClassifier extends Classifier {
     return offsetSamples.toArray(new MultiVariateTimeSeries[]{});
   }
 
-  public int getCount(DoubleIntHashMap counts, double prediction) {
+  public static int getCount(DoubleIntHashMap counts, double prediction) {
     int count = counts.get(prediction);
     if (count == 0) {
       counts.clear();
@@ -281,80 +311,121 @@ public class MTEASERClassifier extends Classifier {
     return counts.addTo(prediction, 1);
   }
 
+  /**
+   * Creates a stream to classify a single multivariate time series sample by sample, as it
+   * arrives.
+   *
+   * @param dimensions the number of dimensions of the time series
+   * @return a new stream for the trained model
+   */
+  public MTEASERStream newStream(int dimensions) {
+    return new MTEASERStream(this.model, dimensions);
+  }
+
   public Predictions score(final MultiVariateTimeSeries[] testSamples) {
     Double[] labels = predict(testSamples);
     return evalLabels(testSamples, labels);
   }
   
+  /**
+   * Predicts the labels of the samples. May be called by concurrent threads.
+   */
   public Double[] predict(final MultiVariateTimeSeries[] testSamples) {
-    return predict(testSamples, true).labels;
+    return predict(testSamples, true, model.threshold).labels;
   }
 
-  private OffsetPrediction predict(
+  OffsetPrediction predict(
       final MultiVariateTimeSeries[] testSamples,
-      final boolean testing) {
+      final boolean testing,
+      final int threshold) {
 
-    double avgOffset = 0;
-    int correct = 0;
-    int count = 0;
+    final EarlyClassificationModel model = this.model;
+    final MUSEClassifier[] slaveClassifiers = model.getSlaveClassifiers(getExecutionContext());
 
-    Double[] predictedLabels = new Double[testSamples.length];
-    int[] offsets = new int[testSamples.length];
-    DoubleIntHashMap[] predictions = new DoubleIntHashMap[testSamples.length];
+    final Double[] predictedLabels = new Double[testSamples.length];
+    final int[] offsets = new int[testSamples.length];
+    final DoubleIntHashMap[] predictions = new DoubleIntHashMap[testSamples.length];
     for (int i = 0; i < testSamples.length; i++) {
       predictions[i] = new DoubleIntHashMap();
     }
 
-    DoubleDoubleMap perClassEarliness = new DoubleDoubleHashMap();
-    DoubleIntMap perClassCount = new DoubleIntHashMap();
+    // the indices of the samples yet to be decided
+    final int[] undecided = new int[testSamples.length];
+    for (int i = 0; i < testSamples.length; i++) {
+      undecided[i] = i;
+    }
+    int remaining = testSamples.length;
 
-    predict:
-    for (int s = 0; s < model.slaveModels.length; s++) {
+    for (int s = 0; s < model.slaveModels.length && remaining > 0; s++) {
       if (model.masterModels[s] != null) {
-        // extract samples of length offset
-        MultiVariateTimeSeries[] data = extractUntilOffset(testSamples, model.offsets[s], testing);
-
-        this.slaveClassifier.setModel(model.slaveModels[s]); // TODO ugly
-        Predictions result = this.slaveClassifier.predictProbabilities(data);
-
-        for (int ind = 0; ind < data.length; ind++) {
-          if (predictedLabels[ind] == null) {
-            double predictedLabel = result.labels[ind];
-            double[] probabilities = result.probabilities[ind];
-
-            double predictNow = svm.svm_predict(
-                model.masterModels[s],
-                generateFeatures(probabilities, result.realLabels));
-
-            if (s >= S
-                || model.offsets[s] >= testSamples[ind].getLength()
-                || predictNow == 1
-                ) {
-              int counts = getCount(predictions[ind], predictedLabel);
-              if (counts >= model.threshold
-                  || s >= S
-                  || model.offsets[s] >= testSamples[ind].getLength()) {
-                predictedLabels[ind] = predictedLabel;
-                double earliness = Math.min(1.0, ((double) model.offsets[s] / testSamples[ind].getLength()));
-                avgOffset += earliness;
-
-                offsets[ind] = model.offsets[s];
-
-                perClassEarliness.addTo(testSamples[ind].getLabel(), earliness);
-                perClassCount.addTo(testSamples[ind].getLabel(), 1);
-
-                if (compareLabels(testSamples[ind].getLabel(), predictedLabel)) {
-                  correct++;
+        // extract the undecided samples of length offset
+        MultiVariateTimeSeries[] data = new MultiVariateTimeSeries[remaining];
+        for (int j = 0; j < remaining; j++) {
+          data[j] = testSamples[undecided[j]];
+        }
+        data = extractUntilOffset(data, model.offsets[s], testing);
+        final Predictions result = slaveClassifiers[s].predictProbabilities(data);
+
+        // apply the master model to each undecided sample
+        final int ss = s;
+        final int size = remaining;
+        final int blocks = getExecutionContext().getBlocks();
+        getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
+          @Override
+          public void run(int id, AtomicInteger processed) {
+            for (int j = 0; j < size; j++) {
+              if (j % blocks == id) {
+                int ind = undecided[j];
+                double predictedLabel = result.labels[j];
+                double[] probabilities = result.probabilities[j];
+
+                double predictNow = svm.svm_predict(
+                    model.masterModels[ss],
+                    generateFeatures(probabilities, result.realLabels));
+
+                if (ss >= S
+                    || model.offsets[ss] >= testSamples[ind].getLength()
+                    || predictNow == 1
+                    ) {
+                  int counts = getCount(predictions[ind], predictedLabel);
+                  if (counts >= threshold
+                      || ss >= S
+                      || model.offsets[ss] >= testSamples[ind].getLength()) {
+                    predictedLabels[ind] = predictedLabel;
+                    offsets[ind] = model.offsets[ss];
+                  }
                 }
-                count++;
               }
             }
           }
-          // no predictions to be made
-          if (count == testSamples.length) {
-            break predict;
+        });
+
+        // only the samples still undecided are passed on to the next offset
+        int k = 0;
+        for (int j = 0; j < remaining; j++) {
+          if (predictedLabels[undecided[j]] == null) {
+            undecided[k++] = undecided[j];
           }
         }
+        remaining = k;
+      }
+    }
+
+    double avgOffset = 0;
+    int correct = 0;
+    DoubleDoubleMap perClassEarliness = new DoubleDoubleHashMap();
+    DoubleIntMap perClassCount = new DoubleIntHashMap();
+    for (int ind = 0; ind < testSamples.length; ind++) {
+      if (predictedLabels[ind] != null) {
+        double earliness = Math.min(1.0, ((double) offsets[ind] / testSamples[ind].getLength()));
+        avgOffset += earliness;
+
+        perClassEarliness.addTo(testSamples[ind].getLabel(), earliness);
+        perClassCount.addTo(testSamples[ind].getLabel(), 1);
+
+        if (compareLabels(testSamples[ind].getLabel(), predictedLabels[ind])) {
+          correct++;
+        }
       }
     }
 
@@ -379,7 +450,8 @@ public class MTEASERClassifier extends Classifier {
         avgOffset,
         predictedLabels,
         correct,
-        testSamples.length);
+        testSamples.length,
+        offsets);
   }
 
   public svm_parameter initSVMParameters(double gamma) {
@@ -402,7 +474,6 @@ public class MTEASERClassifier extends Classifier {
       public void print(String s) {
       } // Disables svm output
     });
-    svm.rand.setSeed(1);
 
     svm_problem problem = new svm_problem();
     final svm_node[][] features = initLibSVM(probabilities, labels);
@@ -0,0 +1,407 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import com.carrotsearch.hppc.DoubleIntHashMap;
+import com.carrotsearch.hppc.IntIntHashMap;
+import com.carrotsearch.hppc.cursors.IntIntCursor;
+import de.bwaldvogel.liblinear.FeatureNode;
+import de.bwaldvogel.liblinear.Linear;
+import libsvm.svm;
+import sfa.classification.Classifier.Words;
+import sfa.timeseries.TimeSeries;
+import sfa.transformation.MUSE;
+import sfa.transformation.RollingMFT;
+import sfa.transformation.SFA;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Early classification of a single multivariate time series, that is consumed one aligned
+ * sample of all dimensions at a time.
+ * <p>
+ * As TEASERStream, the stream advances one rolling MFT per dimension and window length by
+ * each new sample, which is shared by the MUSE models of all offsets yet to come. The SFA
+ * words of each new window are added to the bag of each of these offsets as they arrive,
+ * and the slave and master models of an offset are only applied, once it is reached.
+ * <p>
+ * MUSE does not z-normalize the time series (see TimeSeries.APPLY_Z_NORM), thus a prefix
+ * is transformed the same, no matter at which offset it is classified. If the flag is set
+ * nonetheless, each window is divided by its standard deviation as in MFT, which cancels
+ * the scaling of the prefix. Subtracting the mean of the prefix changes the DC coefficient
+ * of each window though, thus the flag requires all MUSE models to be mean normalised.
+ * <p>
+ * The state of a stream does not grow with the length of the time series: the values of
+ * each dimension are kept in a ring buffer of the longest window length, and for the
+ * bigrams, only the words of the last windowLength windows of each window length. Once an
+ * offset is reached or the label is determined, its state is released.
+ * <p>
+ * A stream must not be shared by concurrent threads, whereas any number of streams may
+ * share a model.
+ */
+public class MTEASERStream {
+
+  private final MTEASERClassifier.EarlyClassificationModel model;
+
+  // the offsets yet to be reached
+  private final List<Offset> pending = new ArrayList<>();
+
+  private final int dimensions;
+
+  // the rolling MFT of each dimension and window length
+  private final RollingMFT[][] mfts;
+
+  // the number of Fourier values kept by the rolling MFTs of each window length
+  private final int[] coefficients;
+
+  // the last offset using the words of each window length
+  private final int[] lastOffsets;
+
+  // the dimensions used by any of the MUSE models
+  private final boolean[] usedDimensions;
+
+  // the values of each dimension: value i is found at i % capacity and i % capacity + capacity,
+  // such that each window is stored in consecutive positions
+  private double[][] ring;
+  private final int capacity;
+  private int length = 0;
+
+  // consecutive equal predictions of the slave models
+  private final DoubleIntHashMap counts = new DoubleIntHashMap();
+  private Offset last = null;
+  private Double lastLabel = null;
+
+  private Double label = null;
+  private int offset = -1;
+
+  /**
+   * The MUSE model of one offset and its bag of patterns.
+   */
+  private final class Offset {
+    final int s;
+    final int offset;
+    final MUSEClassifier.MUSEModel slave;
+    final MUSE muse;
+    final int mask;
+    final int startOffset;
+    final boolean bigrams;
+
+    // the SFA words of the last windowLength windows of each window length and dimension
+    final int[][][] words;
+
+    // the features of the prefix by their index in the dictionary
+    final IntIntHashMap bag = new IntIntHashMap();
+
+    Offset(int s) {
+      this.s = s;
+      this.offset = model.offsets[s];
+      this.slave = model.slaveModels[s];
+      this.muse = this.slave.muse;
+      this.mask = (1 << (Words.binlog(this.muse.alphabetSize) * this.slave.features)) - 1;
+      this.startOffset = this.muse.normMean ? 2 : 0;
+      this.bigrams = getMaxWindowLength() < 200 && MUSEClassifier.BIGRAMS; // see MUSE.createBagOfPatterns
+      this.words = this.bigrams ? new int[this.muse.windowLengths.length][dimensions][] : null;
+    }
+
+    int getMinWindowLength() {
+      return this.muse.windowLengths[0];
+    }
+
+    int getMaxWindowLength() {
+      return this.muse.windowLengths[this.muse.windowLengths.length - 1];
+    }
+
+    boolean isUsed(int dim) {
+      return this.muse.usedDimensions == null || this.muse.usedDimensions[dim];
+    }
+
+    /**
+     * Whether the words of a window length are part of the bag, see
+     * MUSE.createBagOfPatterns.
+     */
+    boolean usesWindowLength(int windowLength) {
+      return windowLength >= getMinWindowLength()
+          && windowLength <= getMaxWindowLength()
+          && windowLength >= this.slave.features;
+    }
+
+    /**
+     * Adds the uni- and bigrams of the current window of each dimension to the bag.
+     */
+    void addWindows(int windowLength) {
+      int w = windowLength - getMinWindowLength();
+      int t = length - windowLength;
+      for (int dim = 0; dim < dimensions; dim++) {
+        if (isUsed(dim)) {
+          int word = quantize(this.muse.signature[w][dim], mfts[dim][windowLength]);
+          addFeature(this.muse.createWord(w, dim, word, 0));
+
+          // add bigrams
+          if (this.bigrams) {
+            if (this.words[w][dim] == null) {
+              this.words[w][dim] = new int[windowLength];
+            }
+            int[] words = this.words[w][dim];
+            int position = t % windowLength;
+            if (t - windowLength >= 0) {
+              addFeature(this.muse.createWord(w, dim, words[position], word));
+            }
+            words[position] = word;
+          }
+        }
+      }
+    }
+
+    /**
+     * The SFA word of the current window of the rolling MFT, masked to the features used,
+     * see MFT.transformWindowingShort and SFA.quantization.
+     */
+    int quantize(SFA sfa, RollingMFT mft) {
+      int windowLength = mft.getWindowSize();
+      double[] coefficients = mft.getCoefficients();
+      double std = mft.getStddev();
+      double norm = (TimeSeries.APPLY_Z_NORM && std > 0 ? 1.0 / std : 1.0)
+          * (this.muse.lowerBounding ? 1.0 / Math.sqrt(windowLength) : 1.0);
+      int mftLength = Math.min(windowLength, this.muse.maxF + this.startOffset);
+      mftLength += mftLength % 2;
+      int values = mftLength - this.startOffset;
+
+      int word = 0;
+      for (int a = 0; a < this.slave.features; a++) {
+        int sign = a % 2 == 0 ? 1 : -1;
+        double value = a < values ? coefficients[this.startOffset + a] * sign * norm : 0;
+        int c = 0;
+        for (; c < sfa.bins[a].length; c++) {
+          if (value < sfa.bins[a][c]) {
+            break;
+          }
+        }
+        word |= c << (a * sfa.neededBits);
+      }
+      return word & this.mask;
+    }
+
+    private void addFeature(long word) {
+      int index = this.muse.dict.dictChi.get(word);
+      if (index > 0) {
+        this.bag.putOrAdd(index, 1, 1);
+      }
+    }
+
+    /**
+     * Applies the slave and the master model to the bag of the prefix.
+     *
+     * @return true, if the master model accepts the prediction
+     */
+    boolean predict() {
+      FeatureNode[] features = new FeatureNode[this.bag.size()];
+      int i = 0;
+      for (IntIntCursor feature : this.bag) {
+        features[i++] = new FeatureNode(feature.key, feature.value);
+      }
+      Arrays.sort(features, new Comparator<FeatureNode>() {
+        public int compare(FeatureNode o1, FeatureNode o2) {
+          return Integer.compare(o1.index, o2.index);
+        }
+      });
+
+      double[] probabilities = new double[this.slave.linearModel.getNrClass()];
+      lastLabel = Linear.predictProbability(this.slave.linearModel, features, probabilities);
+      last = this;
+
+      double predictNow = svm.svm_predict(
+          model.masterModels[this.s],
+          MTEASERClassifier.generateFeatures(probabilities, this.slave.linearModel.getLabels()));
+      return predictNow == 1;
+    }
+  }
+
+  /**
+   * Creates a stream for a trained TEASER model.
+   *
+   * @param model      the trained TEASER model
+   * @param dimensions the number of dimensions of the time series
+   * @throws IllegalStateException if TimeSeries.APPLY_Z_NORM is set and a MUSE model
+   *                               uses the DC coefficient
+   */
+  public MTEASERStream(MTEASERClassifier.EarlyClassificationModel model, int dimensions) {
+    this.model = model;
+    this.dimensions = dimensions;
+
+    int maxWindowLength = 0;
+    this.usedDimensions = new boolean[dimensions];
+    for (int s = 0; s < model.slaveModels.length; s++) {
+      if (model.masterModels[s] != null) {
+        Offset offset = new Offset(s);
+        if (TimeSeries.APPLY_Z_NORM && !offset.muse.normMean) {
+          throw new IllegalStateException(
+              "Streaming z-normalized prefixes requires mean normalised MUSE models, see TimeSeries.APPLY_Z_NORM");
+        }
+        this.pending.add(offset);
+        maxWindowLength = Math.max(maxWindowLength, offset.getMaxWindowLength());
+        for (int dim = 0; dim < dimensions; dim++) {
+          this.usedDimensions[dim] |= offset.isUsed(dim);
+        }
+      }
+    }
+
+    this.coefficients = new int[maxWindowLength + 1];
+    this.lastOffsets = new int[maxWindowLength + 1];
+    for (Offset offset : this.pending) {
+      for (int windowLength : offset.muse.windowLengths) {
+        if (offset.usesWindowLength(windowLength)) {
+          this.coefficients[windowLength] = Math.max(
+              this.coefficients[windowLength], offset.muse.maxF + offset.startOffset);
+          this.lastOffsets[windowLength] = Math.max(this.lastOffsets[windowLength], offset.offset);
+        }
+      }
+    }
+    this.mfts = new RollingMFT[dimensions][maxWindowLength + 1];
+    this.capacity = maxWindowLength + 1;
+    this.ring = new double[dimensions][2 * this.capacity];
+  }
+
+  /**
+   * Appends the next values of all dimensions of the time series. Once the label is
+   * determined, further values are ignored.
+   *
+   * @param values the next value of each dimension
+   * @return the predicted label, or null if it is not yet determined
+   */
+  public Double update(double[] values) {
+    if (this.label != null) {
+      return this.label;
+    }
+    if (values.length != this.dimensions) {
+      throw new IllegalArgumentException("Expected " + this.dimensions + " dimensions, but got " + values.length);
+    }
+
+    int position = this.length % this.capacity;
+    for (int dim = 0; dim < this.dimensions; dim++) {
+      this.ring[dim][position] = values[dim];
+      this.ring[dim][position + this.capacity] = values[dim];
+    }
+    this.length++;
+
+    // add the new window of each window length to the offsets yet to come
+    for (int windowLength = 1; windowLength < this.capacity && windowLength <= this.length; windowLength++) {
+      if (this.length <= this.lastOffsets[windowLength]) {
+        moveMFTs(windowLength);
+        for (Offset offset : this.pending) {
+          if (offset.usesWindowLength(windowLength)) {
+            offset.addWindows(windowLength);
+          }
+        }
+        if (this.length == this.lastOffsets[windowLength]) {
+          releaseMFTs(windowLength);
+        }
+      }
+    }
+
+    // apply the models of the offset reached
+    Iterator<Offset> it = this.pending.iterator();
+    while (it.hasNext()) {
+      Offset offset = it.next();
+      if (offset.offset <= this.length) {
+        it.remove();
+        boolean predictNow = offset.predict();
+        if (offset.s >= MTEASERClassifier.S || predictNow) {
+          int count = MTEASERClassifier.getCount(this.counts, this.lastLabel);
+          if (count >= this.model.threshold || offset.s >= MTEASERClassifier.S) {
+            decide(offset);
+            break;
+          }
+        }
+      }
+    }
+    return this.label;
+  }
+
+  /**
+   * Marks the end of the time series. If the label is not yet determined, the slave model
+   * of the next offset is applied to the complete time series, as in TEASER.
+   *
+   * @return the predicted label
+   */
+  public Double finish() {
+    if (this.label == null) {
+      if (this.last != null && this.last.offset == this.length) {
+        decide(this.last);
+      } else if (!this.pending.isEmpty()) {
+        Offset offset = this.pending.remove(0);
+        offset.predict();
+        decide(offset);
+      }
+    }
+    return this.label;
+  }
+
+  private void decide(Offset offset) {
+    this.label = this.lastLabel;
+    this.offset = offset.offset;
+    this.pending.clear();
+    this.last = null;
+    Arrays.fill(this.mfts, null);
+    this.ring = null;
+  }
+
+  /**
+   * Moves the rolling MFTs of a window length to the new window of each dimension. The
+   * rolling MFTs are moved by each value until the last offset using the window length,
+   * such that the Fourier values are the same as those of MFT.transformWindowing.
+   */
+  private void moveMFTs(int windowLength) {
+    for (int dim = 0; dim < this.dimensions; dim++) {
+      if (this.usedDimensions[dim]) {
+        RollingMFT mft = this.mfts[dim][windowLength];
+        if (mft == null) {
+          mft = new RollingMFT(windowLength, this.coefficients[windowLength]);
+          mft.reset(this.ring[dim], (this.length - windowLength) % this.capacity);
+          this.mfts[dim][windowLength] = mft;
+        } else {
+          mft.slide(
+              this.ring[dim][(this.length - 1) % this.capacity],
+              this.ring[dim][(this.length - 1 - windowLength) % this.capacity]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Releases the rolling MFTs of a window length, once no offset yet to come uses it.
+   */
+  private void releaseMFTs(int windowLength) {
+    for (int dim = 0; dim < this.dimensions; dim++) {
+      this.mfts[dim][windowLength] = null;
+    }
+  }
+
+  public boolean isDecided() {
+    return this.label != null;
+  }
+
+  /**
+   * The predicted label, or null if it is not yet determined.
+   */
+  public Double getLabel() {
+    return this.label;
+  }
+
+  /**
+   * The offset, at which the label was determined, or -1.
+   */
+  public int getOffset() {
+    return this.offset;
+  }
+
+  /**
+   * The number of values consumed of each dimension.
+   */
+  public int getLength() {
+    return this.length;
+  }
+}
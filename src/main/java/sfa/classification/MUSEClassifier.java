@@ -2,7 +2,7 @@
 // Distributed under the GLP 3.0 (See accompanying file LICENSE)
 package sfa.classification;
 
-import com.carrotsearch.hppc.cursors.ObjectIntCursor;
+import com.carrotsearch.hppc.cursors.LongIntCursor;
 import de.bwaldvogel.liblinear.*;
 import sfa.timeseries.MultiVariateTimeSeries;
 import sfa.timeseries.TimeSeries;
@@ -13,6 +13,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The WEASEL+MUSE classifier as published in
@@ -42,6 +43,16 @@ public class MUSEClassifier extends Classifier {
   public static int MIN_WINDOW_LENGTH = 2;
   public static int MAX_WINDOW_LENGTH = 450;
 
+  // the SFA words of maxF symbols are shared by all word lengths. Up to this many MB of
+  // words are kept on the heap, the remaining windows are transformed again for each
+  // word length. 0 disables the cache.
+  public static int wordCacheMB = 0;
+
+  // if set, only the maxDimensions most informative dimensions are used, ranked by an
+  // ANOVA F-test on up to dimensionSelectionSamples train samples (see MUSE.selectDimensions)
+  public static int maxDimensions = 0;
+  public static int dimensionSelectionSamples = 1000;
+
   // the trained muse model
   MUSEModel model;
 
@@ -167,43 +178,40 @@ public class MUSEClassifier extends Classifier {
       int bestF = -1;
       boolean bestNorm = false;
       SFA.HistogramType bestHistType = null;
+      MUSE bestWordModel = null;
+
+      // skip uninformative dimensions
+      final boolean[] usedDimensions = maxDimensions > 0
+          ? MUSE.selectDimensions(samples, maxDimensions, dimensionSelectionSamples)
+          : null;
 
       optimize:
       for (final SFA.HistogramType histType : histTypes) {
         for (final boolean mean : NORMALIZATION) {
           int[] windowLengths = getWindowLengths(samples, mean);
 
+          // SFA words of maxF symbols, shorter words are obtained by masking
+          final MUSE wordModel = new MUSE(maxF, maxS, histType, windowLengths, mean, lowerBounding);
+          wordModel.setExecutionContext(getExecutionContext());
+          wordModel.usedDimensions = usedDimensions;
+          final int[][][] wordCache = wordCacheMB > 0 ? new int[windowLengths.length][][] : null;
+          final AtomicLong cacheSize = new AtomicLong(0);
+
           for (int f = minF; f <= maxF; f += 2) {
             final MUSE model = new MUSE(f, maxS, histType, windowLengths, mean, lowerBounding);
-            MUSE.BagOfBigrams[] bag = new MUSE.BagOfBigrams[samples.length];
-
-            final int ff = f;
-            ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
-              @Override
-              public void run(int id, AtomicInteger processed) {
-                for (int w = 0; w < model.windowLengths.length; w++) {
-                  if (w % BLOCKS == id) {
-                    int[][] words = model.createWords(samples, w);
-                    MUSE.BagOfBigrams[] bobForOneWindow = fitOneWindow(
-                        samples,
-                        windowLengths, mean, histType,
-                        model,
-                        words, ff, dimensionality, w);
-                    mergeBobs(bag, bobForOneWindow);
-                  }
-                }
-              }
-            });
+            MUSE.BagOfBigrams[] bag = fitBagOfBigrams(
+                samples, model, wordModel, wordCache, cacheSize, f, dimensionality);
 
             // train liblinear
             final Problem problem = initLibLinearProblem(bag, model.dict, bias);
-            int correct = trainLibLinear(problem, solverType, c, iterations, p, folds);
+            int correct = trainLibLinear(getExecutionContext(), problem, solverType, c, iterations, p, folds);
 
             if (correct > maxCorrect || correct == maxCorrect && f < bestF) {
               maxCorrect = correct;
               bestF = f;
               bestNorm = mean;
               bestHistType = histType;
+              bestWordModel = wordModel;
 
               if (DEBUG) {
                 System.out.println("New best model" + maxCorrect + " " + bestF + " " + bestNorm + " " + bestHistType);
@@ -216,39 +224,17 @@ public class MUSEClassifier extends Classifier {
         }
       }
 
-      final int[] windowLengths = getWindowLengths(samples, bestNorm);
-
-      // obtain the final matrix
-      MUSE model = new MUSE(bestF, maxS, bestHistType, windowLengths, bestNorm, lowerBounding);
-      MUSE.BagOfBigrams[] bob = new MUSE.BagOfBigrams[samples.length];
-
-      final boolean mean = bestNorm;
-      final SFA.HistogramType hist = bestHistType;
-      final int ff = bestF;
-      ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
-        @Override
-        public void run(int id, AtomicInteger processed) {
-
-          for (int w = 0; w < model.windowLengths.length; w++) {
-            if (w % BLOCKS == id) {
-              int[][] words = model.createWords(samples, w);
-              MUSE.BagOfBigrams[] bobForOneWindow = fitOneWindow(
-                  samples,
-                  windowLengths, mean, hist,
-                  model,
-                  words,
-                  ff, dimensionality, w);
-              mergeBobs(bob, bobForOneWindow);
-            }
-          }
-        }
-      });
+      // obtain the final matrix: the SFA quantization of the best configuration is reused,
+      // and its words are masked to bestF symbols
+      MUSE model = bestWordModel;
+      MUSE.BagOfBigrams[] bob = fitBagOfBigrams(
+          samples, model, model, null, null, bestF, dimensionality);
 
       // train liblinear
       Problem problem = initLibLinearProblem(bob, model.dict, bias);
       Parameter par = new Parameter(solverType, c, iterations, p);
       //par.setThreadCount(Math.min(Runtime.getRuntime().availableProcessors(),10));
-      de.bwaldvogel.liblinear.Model linearModel = Linear.train(problem, par);
+      de.bwaldvogel.liblinear.Model linearModel = trainLinear(problem, par);
 
       return new MUSEModel(
           bestNorm,
@@ -267,32 +253,100 @@ public class MUSEClassifier extends Classifier {
     return null;
   }
 
-  private MUSE.BagOfBigrams[] fitOneWindow(
+  /**
+   * The SFA words of window length index w, either from the cache or transformed again,
+   * if there is no cache or the cache exceeds wordCacheMB.
+   */
+  private static int[][] getWords(
+      MUSE wordModel,
       MultiVariateTimeSeries[] samples,
-      int[] windowLengths, boolean mean,
-      SFA.HistogramType histType,
-      MUSE model,
-      int[][] word, int f, int dimensionality, int w) {
-    MUSE modelForWindow = new MUSE(f, maxS, histType, windowLengths, mean, lowerBounding);
+      int w,
+      int[][][] wordCache,
+      AtomicLong cacheSize) {
+    if (wordCache == null) {
+      return wordModel.createWords(samples, w);
+    }
+    if (wordCache[w] != null) {
+      return wordCache[w];
+    }
+    int[][] words = wordModel.createWords(samples, w);
+
+    long size = 0;
+    for (int[] word : words) {
+      size += 16 + 4L * word.length;
+    }
+    if (cacheSize.addAndGet(size) <= wordCacheMB * 1024L * 1024L) {
+      wordCache[w] = words;
+    } else {
+      cacheSize.addAndGet(-size);
+    }
+    return words;
+  }
 
-    MUSE.BagOfBigrams[] bopForWindow = modelForWindow.createBagOfPatterns(word, samples, w, dimensionality, f);
-    modelForWindow.trainChiSquared(bopForWindow, chi);
+  /**
+   * Creates the bags of bigrams of all window lengths in parallel. The features of each
+   * window length, that pass the chi-squared test, form a partial dictionary. These are
+   * added to the dictionary of the model in the order of the window lengths, thus the
+   * dictionary does not depend on the scheduling of the threads.
+   */
+  private MUSE.BagOfBigrams[] fitBagOfBigrams(
+      final MultiVariateTimeSeries[] samples,
+      final MUSE model,
+      final MUSE wordModel,
+      final int[][][] wordCache,
+      final AtomicLong cacheSize,
+      final int f,
+      final int dimensionality) {
+    final MUSE.BagOfBigrams[] bags = createBags(samples);
+    final long[][] partialDicts = new long[model.windowLengths.length][];
+
+    final int blocks = getExecutionContext().getBlocks();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
+      @Override
+      public void run(int id, AtomicInteger processed) {
+        for (int w = 0; w < model.windowLengths.length; w++) {
+          if (w % blocks == id) {
+            int[][] words = getWords(wordModel, samples, w, wordCache, cacheSize);
+            MUSE.BagOfBigrams[] bobForOneWindow = model.createBagOfPatterns(words, samples, w, dimensionality, f);
+            partialDicts[w] = model.trainChiSquared(bobForOneWindow, chi);
+            mergeBobs(bags, bobForOneWindow, id, blocks);
+          }
+        }
+      }
+    });
 
-    // now, merge dicts
-    model.dict.dictChi.putAll(modelForWindow.dict.dictChi);
+    for (long[] words : partialDicts) {
+      model.dict.addWords(words);
+    }
+    return bags;
+  }
 
-    return bopForWindow;
+  private static MUSE.BagOfBigrams[] createBags(MultiVariateTimeSeries[] samples) {
+    MUSE.BagOfBigrams[] bags = new MUSE.BagOfBigrams[samples.length];
+    for (int i = 0; i < samples.length; i++) {
+      bags[i] = new MUSE.BagOfBigrams(100, samples[i].getLabel());
+    }
+    return bags;
   }
 
-  private synchronized void mergeBobs(
+  /**
+   * Adds the bags of one window length to the bags of all window lengths. Each bag is
+   * locked on its own, and each thread starts at a different bag to avoid contention.
+   */
+  private static void mergeBobs(
       MUSE.BagOfBigrams[] bop,
-      MUSE.BagOfBigrams[] bopForWindow) {
-    for (int i = 0; i < bop.length; i++) {
-      if (bop[i]==null) {
-        bop[i] = bopForWindow[i];
-      }
-      else {
-        bop[i].bob.putAll(bopForWindow[i].bob);
+      MUSE.BagOfBigrams[] bopForWindow,
+      int id,
+      int blocks) {
+    int start = (int) ((long) id * bop.length / blocks);
+    for (int j = 0; j < bop.length; j++) {
+      int i = (start + j) % bop.length;
+      synchronized (bop[i]) {
+        if (bop[i].bob.isEmpty()) {
+          bop[i].bob = bopForWindow[i].bob;
+        } else {
+          bop[i].bob.putAll(bopForWindow[i].bob);
+        }
       }
     }
   }
@@ -311,17 +365,18 @@ public class MUSEClassifier extends Classifier {
     // iterate each sample to classify
     int dimensionality = samples[0].getDimensions();
 
-    MUSE.BagOfBigrams[] bagTest = new MUSE.BagOfBigrams[samples.length];
+    MUSE.BagOfBigrams[] bagTest = createBags(samples);
 
-    ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
+    final int blocks = getExecutionContext().getBlocks();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
         for (int w = 0; w < model.muse.windowLengths.length; w++) {
-          if (w % BLOCKS == id) {
+          if (w % blocks == id) {
             int[][] wordsTest = model.muse.createWords(samples, w);
             MUSE.BagOfBigrams[] bopForWindow = model.muse.createBagOfPatterns(wordsTest, samples, w, dimensionality, model.features);
             model.muse.dict.filterChiSquared(bopForWindow);
-            mergeBobs(bagTest, bopForWindow);
+            mergeBobs(bagTest, bopForWindow, id, blocks);
           }
         }
       }
@@ -344,16 +399,17 @@ public class MUSEClassifier extends Classifier {
     int dimensionality = samples[0].getDimensions();
 
     // iterate each sample to classify
-    final MUSE.BagOfBigrams[] bagTest = new MUSE.BagOfBigrams[samples.length];
-    ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
+    final MUSE.BagOfBigrams[] bagTest = createBags(samples);
+    final int blocks = getExecutionContext().getBlocks();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
         for (int w = 0; w < model.muse.windowLengths.length; w++) {
-          if (w % BLOCKS == id) {
+          if (w % blocks == id) {
             int[][] wordsTest = model.muse.createWords(samples, w);
             MUSE.BagOfBigrams[] bopForWindow = model.muse.createBagOfPatterns(wordsTest, samples, w, dimensionality, model.features);
             model.muse.dict.filterChiSquared(bopForWindow);
-            mergeBobs(bagTest, bopForWindow);
+            mergeBobs(bagTest, bopForWindow, id, blocks);
           }
         }
       }
@@ -361,11 +417,11 @@ public class MUSEClassifier extends Classifier {
 
     FeatureNode[][] features = initLibLinear(bagTest, model.muse.dict);
 
-    ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
         for (int ind = 0; ind < features.length; ind++) {
-          if (ind % BLOCKS == id) {
+          if (ind % blocks == id) {
             probabilities[ind] = new double[model.linearModel.getNrClass()];
             labels[ind] = Linear.predictProbability(model.linearModel, features[ind], probabilities[ind]);
           }
@@ -378,7 +434,6 @@ public class MUSEClassifier extends Classifier {
 
   public static Problem initLibLinearProblem(
       final MUSE.BagOfBigrams[] bob, final MUSE.Dictionary dict, final double bias) {
-    Linear.resetRandom();
 
     Problem problem = new Problem();
     problem.bias = bias;
@@ -408,7 +463,7 @@ public class MUSEClassifier extends Classifier {
     for (int j = 0; j < bob.length; j++) {
       MUSE.BagOfBigrams bop = bob[j];
       ArrayList<FeatureNode> features = new ArrayList<FeatureNode>(bop.bob.size());
-      for (ObjectIntCursor<MUSE.MuseWord> word : bop.bob) {
+      for (LongIntCursor word : bop.bob) {
         if (word.value > 0 ) {
           features.add(new FeatureNode(dict.getWordChi(word.key), word.value));
         }
@@ -2,9 +2,6 @@
 // Distributed under the GLP 3.0 (See accompanying file LICENSE)
 package sfa.classification;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -13,56 +10,66 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class ParallelFor {
 
-  private static int CPUs = Math.min(Runtime.getRuntime().availableProcessors(), 40);
-  private static ExecutorService executor = Executors.newFixedThreadPool(CPUs);
-
   public interface Each {
     void run(int i, AtomicInteger processed);
   }
 
+  /**
+   * Runs the body for each index from 0 to chunksize - 1. The indices are taken in turn by
+   * the calling thread and by the threads of the executor, thus the calling thread only
+   * waits for indices already running on other threads. If the executor rejects the work,
+   * the calling thread processes all indices.
+   *
+   * @return the number processed, as counted by the body
+   */
   public static int withIndex(ExecutorService executor, final int chunksize, final Each body) {
     final CountDownLatch latch = new CountDownLatch(chunksize);
     final AtomicInteger processed = new AtomicInteger(0);
-    LinkedList<Future<?>> futures = new LinkedList<>();
+    final AtomicInteger next = new AtomicInteger(0);
 
-    for (int i = 0; i < chunksize; i++) {
-      final int ii = i;
-      futures.add(executor.submit(new Runnable() {
-        public void run() {
+    Runnable worker = new Runnable() {
+      public void run() {
+        for (int i = next.getAndIncrement(); i < chunksize; i = next.getAndIncrement()) {
           try {
-            body.run(ii, processed);
+            body.run(i, processed);
           } catch (Exception e) {
             e.printStackTrace();
           } finally {
             latch.countDown();
           }
         }
-      }));
-    }
-    try {
-      latch.await();
+      }
+    };
 
-      while (!futures.isEmpty()) {
-        futures.removeFirst().get();
+    try {
+      for (int i = 1; i < chunksize; i++) {
+        executor.execute(worker);
       }
+    } catch (RejectedExecutionException e) {
+      // the calling thread does the remaining work
+    }
+    worker.run();
 
+    try {
+      latch.await();
     } catch (InterruptedException e) {
       e.printStackTrace();
-      //executor.shutdownNow();
-    } catch (Exception e) {
-      e.printStackTrace();
+      Thread.currentThread().interrupt();
     }
-//    finally {
-//      executor.shutdown();
-//    }
     return processed.get();
   }
 
+  /**
+   * Runs the body for each index on the default execution context.
+   */
   public static int withIndex(int stop, final Each body) {
-    return withIndex(executor, stop, body);
+    return ExecutionContext.getDefault().withIndex(stop, body);
   }
 
+  /**
+   * Closes the default execution context. A new one is created on next use.
+   */
   public static void shutdown() {
-    executor.shutdown();
+    ExecutionContext.getDefault().close();
   }
 }
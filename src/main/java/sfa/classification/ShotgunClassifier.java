@@ -3,6 +3,7 @@
 package sfa.classification;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -22,6 +23,30 @@ public class ShotgunClassifier extends Classifier {
 
   public static int MAX_WINDOW_LENGTH = 250;
 
+  // number of Fourier coefficients used to lower bound the Euclidean distance of a
+  // query window to a train window, to skip train windows and train samples. 0 disables
+  // the pruning.
+  public static int lowerBoundCoefficients = 4;
+
+  // below this window length, early abandoning alone is faster than computing lower bounds
+  public static int MIN_LOWER_BOUND_WINDOW_LENGTH = 50;
+
+  // from this window length on, the distances of a query window to all windows of a train
+  // sample are derived from FFT based sliding dot products (see DistanceProfile)
+  public static int MIN_DISTANCE_PROFILE_WINDOW_LENGTH = Integer.MAX_VALUE;
+
+  // guards the pruning against rounding errors of the lower bounds and of the distances,
+  // relative to their magnitude. The rounding errors of the Fourier coefficients are
+  // bounded absolutely, see getDftError.
+  private static final double LOWER_BOUND_SLACK = 1.0 - 1e-9;
+
+  // the bound of the relative rounding error of a single floating point operation, doubled
+  // for the rounding errors of the twiddle factors
+  private static final double DFT_ROUNDING = 2 * Math.ulp(1.0);
+
+  // the sliding DFT is recomputed from scratch every RESYNC offsets to limit rounding errors
+  private static final int RESYNC = 256;
+
   public ShotgunClassifier() {
     super();
   }
@@ -39,7 +64,42 @@ public class ShotgunClassifier extends Classifier {
       this.samples = samples;
     }
 
+    public ShotgunModel(
+            boolean normed,
+            int windowLength,
+            TimeSeries[] samples,
+            DistanceProfile profile
+    ) {
+      this(normed, windowLength, samples);
+      this.profile = profile;
+    }
+
     public TimeSeries[] samples; // the train samples needed for 1-NN classification
+
+    // the cumulative sums of the train samples, shared by the models of all window lengths
+    transient DistanceProfile profile;
+
+    public synchronized DistanceProfile getDistanceProfile() {
+      if (this.profile == null) {
+        this.profile = new DistanceProfile(this.samples);
+      }
+      return this.profile;
+    }
+
+    /**
+     * Shares the cumulative sums of the other model, if both use the same train samples,
+     * e.g. the models of an ensemble after it is loaded.
+     */
+    void shareDistanceProfile(ShotgunModel other) {
+      if (other.samples == this.samples) {
+        DistanceProfile profile = other.getDistanceProfile();
+        synchronized (this) {
+          if (this.profile == null) {
+            this.profile = profile;
+          }
+        }
+      }
+    }
   }
 
   public Score eval(
@@ -111,15 +171,21 @@ public class ShotgunClassifier extends Classifier {
     Integer[] windows = getWindowsBetween(minWindowLength, maxWindowLength);
 
     final AtomicInteger correctTraining = new AtomicInteger(0);
+    final DistanceProfile profile = new DistanceProfile(trainSamples);
 
     final List<ShotgunModel> results = new ArrayList<>(windows.length);
-    ParallelFor.withIndex(exec, threads, new ParallelFor.Each() {
+    final int blocks = getExecutionContext().getThreads();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
+        // the nearest neighbors of the previous window length
+        int[] neighbors = new int[trainSamples.length];
+        Arrays.fill(neighbors, -1);
+
         for (int i = 0; i < windows.length; i++) {
-          if (i % threads == id) {
-            ShotgunModel model = new ShotgunModel(normMean, windows[i], trainSamples);
-            Double[] labels = predict(model, trainSamples);
+          if (i % blocks == id) {
+            ShotgunModel model = new ShotgunModel(normMean, windows[i], trainSamples, profile);
+            Double[] labels = predict(model, trainSamples, neighbors);
             Predictions p = evalLabels(trainSamples, labels);
 
             model.score = new Score(model.name, -1, 1, p.correct.get(), trainSamples.length, windows[i]);
@@ -150,42 +216,178 @@ public class ShotgunClassifier extends Classifier {
   }
 
   protected Double[] predict(ShotgunModel model, final TimeSeries[] testSamples) {
+    return predict(model, testSamples, null);
+  }
+
+  protected Double[] predict(ShotgunModel model, final TimeSeries[] testSamples, final int[] neighbors) {
+    return predict(model, testSamples, neighbors, null);
+  }
+
+  /**
+   * Predicts the labels of the test samples using 1-NN classification.
+   *
+   * @param neighbors if not null, holds the index of a train sample close to each test sample
+   *                  or -1, i.e. its nearest neighbor for a similar window length. Its
+   *                  distance bounds the 1-NN search. Is filled with the nearest neighbors.
+   * @param nnDistances if not null, is filled with the distance of each test sample to its
+   *                    nearest neighbor
+   */
+  protected Double[] predict(
+      ShotgunModel model, final TimeSeries[] testSamples, final int[] neighbors, final double[] nnDistances) {
 
     final Double[] p = new Double[testSamples.length];
 
     // calculate means and stds for each sample
+    final DistanceProfile statistics = model.getDistanceProfile();
     final double[][] means = new double[model.samples.length][];
     final double[][] stds = new double[model.samples.length][];
-    calcMeansStds(model.windowLength, model.samples, means, stds, model.normed);
+    statistics.calcMeansStds(model.windowLength, means, stds, model.normed);
+
+    // the first Fourier coefficients of each sliding window for lower bounding
+    final int coefficients = model.windowLength >= MIN_LOWER_BOUND_WINDOW_LENGTH
+        ? Math.min(lowerBoundCoefficients, (model.windowLength + 1) / 2)
+        : 0;
+    final double[] dftErrors = new double[model.samples.length];
+    final double[][] dfts = coefficients > 0
+        ? calcSlidingDFTs(model.windowLength, model.samples, coefficients, dftErrors)
+        : null;
+    final double[] twiddles = coefficients > 0 ? getTwiddles(model.windowLength) : null;
+
+    final DistanceProfile profile = model.windowLength >= MIN_DISTANCE_PROFILE_WINDOW_LENGTH
+        ? statistics
+        : null;
+    if (profile != null) {
+      profile.prepareTransforms();
+    }
 
-    ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
+    final int blocks = getExecutionContext().getBlocks();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
+        double[] lowerBounds = new double[0];
+        int[] bestOffsets = new int[0];
+        double[] distances = new double[0];
+
         // iterate each sample to classify
         for (int i = 0; i < testSamples.length; i++) {
-          if (i % BLOCKS == id) {
+          if (i % blocks == id) {
             final TimeSeries query = testSamples[i];
 
             double distanceTo1NN = Double.MAX_VALUE;
+            int nearest = -1;
 
             int wQueryLen = Math.min(query.getLength(), model.windowLength);
             TimeSeries[] disjointWindows = query.getDisjointSequences(wQueryLen, model.normed); // possible without copying!?
 
+            // lower bounds require query windows of full window length
+            double[][] queryDfts = null;
+            double[] queryErrors = null;
+            if (dfts != null && wQueryLen == model.windowLength) {
+              queryDfts = new double[disjointWindows.length][];
+              queryErrors = new double[disjointWindows.length];
+              for (int q = 0; q < disjointWindows.length; q++) {
+                double[] data = disjointWindows[q].getData();
+                queryDfts[q] = calcDFT(data, 0, wQueryLen, coefficients, twiddles);
+                queryErrors[q] = getDftError(getMaxAbs(data, 0, wQueryLen), wQueryLen, 0);
+              }
+            }
+
+            DistanceProfile.Query[] queries = null;
+            if (profile != null) {
+              queries = new DistanceProfile.Query[disjointWindows.length];
+              for (int q = 0; q < disjointWindows.length; q++) {
+                queries[q] = profile.new Query(disjointWindows[q].getData());
+              }
+            }
+
+            // any distance smaller than that of the given neighbor is at most as large
+            if (neighbors != null && neighbors[i] >= 0) {
+              int j = neighbors[i];
+              int end = model.samples[j].getLength() - model.windowLength + 1;
+              double totalDistance = 0.0;
+              for (int q = 0; q < disjointWindows.length; q++) {
+                double resultDistance = Double.MAX_VALUE;
+                if (queries != null) {
+                  if (end > 0) {
+                    if (distances.length < end) {
+                      distances = new double[end];
+                    }
+                    resultDistance = profile.getDistances(queries[q], j, means[j], stds[j], distances, end);
+                  }
+                } else {
+                  resultDistance = getMinimalDistance(model.samples[j], disjointWindows[q], means[j], stds[j], end);
+                }
+                totalDistance += resultDistance;
+              }
+              distanceTo1NN = Math.min(distanceTo1NN, Math.nextUp(totalDistance));
+            }
+
             // perform a 1-NN search
             for (int j = 0; j < model.samples.length; j++) {
               TimeSeries ts = model.samples[j];
 
               // Shotgun Distance
               if (ts != query) {
+                int end = ts.getLength() - model.windowLength + 1;
+
+                // skip the train sample, if the sum of the lower bounds of all query windows
+                // exceeds the distance to the nearest neighbor
+                if (queryDfts != null) {
+                  if (lowerBounds.length < queryDfts.length * Math.max(end, 0)) {
+                    lowerBounds = new double[queryDfts.length * end];
+                  }
+                  if (bestOffsets.length < queryDfts.length) {
+                    bestOffsets = new int[queryDfts.length];
+                  }
+                  double totalLowerBound = 0.0;
+                  for (int q = 0; q < queryDfts.length && totalLowerBound < distanceTo1NN; q++) {
+                    double minLowerBound = Double.POSITIVE_INFINITY;
+                    for (int ww = 0; ww < end; ww++) {
+                      double lowerBound = getLowerBound(queryDfts[q], dfts[j], ww,
+                          means[j][ww], stds[j][ww], model.windowLength, coefficients, model.normed,
+                          queryErrors[q] + dftErrors[j] * Math.abs(stds[j][ww]));
+                      lowerBounds[q * end + ww] = lowerBound;
+                      if (lowerBound < minLowerBound) {
+                        minLowerBound = lowerBound;
+                        bestOffsets[q] = ww;
+                      }
+                    }
+                    totalLowerBound += minLowerBound;
+                  }
+                  if (totalLowerBound >= distanceTo1NN) {
+                    continue;
+                  }
+                }
+
                 double totalDistance = 0.0;
 
-                for (final TimeSeries q : disjointWindows) {
+                for (int q = 0; q < disjointWindows.length; q++) {
                   double resultDistance = distanceTo1NN;
 
-                  // calculate euclidean distances for each sliding window
-                  for (int ww = 0, end = ts.getLength() - model.windowLength + 1; ww < end; ww++) { // faster than reevaluation in for loop
-                    double distance = getEuclideanDistance(ts, q, means[j][ww], stds[j][ww], resultDistance, ww);
-                    resultDistance = Math.min(distance, resultDistance);
+                  if (queries != null) {
+                    // all distances at once
+                    if (end > 0) {
+                      if (distances.length < end) {
+                        distances = new double[end];
+                      }
+                      resultDistance = Math.min(resultDistance,
+                          profile.getDistances(queries[q], j, means[j], stds[j], distances, end));
+                    }
+                  } else {
+                    // start with the most promising window to tighten the bound early
+                    if (queryDfts != null) {
+                      int ww = bestOffsets[q];
+                      resultDistance = Math.min(resultDistance, getEuclideanDistance(
+                          ts, disjointWindows[q], means[j][ww], stds[j][ww], resultDistance, ww));
+                    }
+
+                    // calculate euclidean distances for each sliding window
+                    for (int ww = 0; ww < end; ww++) { // faster than reevaluation in for loop
+                      if (queryDfts == null || lowerBounds[q * end + ww] < resultDistance) {
+                        double distance = getEuclideanDistance(ts, disjointWindows[q], means[j][ww], stds[j][ww], resultDistance, ww);
+                        resultDistance = Math.min(distance, resultDistance);
+                      }
+                    }
                   }
                   totalDistance += resultDistance;
 
@@ -199,9 +401,17 @@ public class ShotgunClassifier extends Classifier {
                 if (totalDistance < distanceTo1NN) {
                   p[i] = ts.getLabel();
                   distanceTo1NN = totalDistance;
+                  nearest = j;
                 }
               }
             }
+
+            if (neighbors != null) {
+              neighbors[i] = nearest;
+            }
+            if (nnDistances != null) {
+              nnDistances[i] = distanceTo1NN;
+            }
           }
         }
       }
@@ -210,6 +420,157 @@ public class ShotgunClassifier extends Classifier {
     return p;
   }
 
+  /**
+   * The minimal Euclidean distance of the query window q to the first windows of ts.
+   */
+  protected static double getMinimalDistance(
+          TimeSeries ts,
+          TimeSeries q,
+          double[] means,
+          double[] stds,
+          int windows) {
+    double resultDistance = Double.MAX_VALUE;
+    for (int ww = 0; ww < windows; ww++) {
+      double distance = getEuclideanDistance(ts, q, means[ww], stds[ww], resultDistance, ww);
+      resultDistance = Math.min(distance, resultDistance);
+    }
+    return resultDistance;
+  }
+
+  /**
+   * Lower bounds the Euclidean distance of a normalized query window to the normalized
+   * train window at offset w using the first Fourier coefficients (Parseval's theorem).
+   * As the signals are real, each coefficient but the first one is counted twice.
+   *
+   * @param error the bound of the rounding error of the real and imaginary part of the
+   *              difference of each coefficient, by which each difference is shrunk
+   */
+  protected static double getLowerBound(
+          double[] queryDft,
+          double[] dft,
+          int w,
+          double meanTs,
+          double stdTs,
+          int windowLength,
+          int coefficients,
+          boolean normMean,
+          double error) {
+    int offset = 2 * coefficients * w;
+    double lowerBound = 0.0;
+
+    // the DC coefficients cancel out, if the mean is subtracted
+    for (int k = normMean ? 1 : 0; k < coefficients; k++) {
+      double real = dft[offset + 2 * k];
+      if (k == 0) {
+        real -= windowLength * meanTs;
+      }
+      double diffReal = Math.max(0.0, Math.abs(queryDft[2 * k] - real * stdTs) - error);
+      double diffImag = Math.max(0.0, Math.abs(queryDft[2 * k + 1] - dft[offset + 2 * k + 1] * stdTs) - error);
+      lowerBound += (k == 0 ? 1 : 2) * (diffReal * diffReal + diffImag * diffImag);
+    }
+    return lowerBound / windowLength * LOWER_BOUND_SLACK;
+  }
+
+  /**
+   * The first coefficients of the DFT of each sliding window of each sample using the
+   * momentary Fourier transform. Holds the real and imaginary part of coefficient k of the
+   * window at offset w at 2 * (w * coefficients + k).
+   *
+   * @param errors is filled with the bound of the rounding error of the coefficients of
+   *               each sample, see getDftError
+   */
+  protected static double[][] calcSlidingDFTs(
+          final int windowLength,
+          final TimeSeries[] samples,
+          final int coefficients,
+          final double[] errors) {
+    double[][] dfts = new double[samples.length][];
+    double[] twiddles = getTwiddles(windowLength);
+    double[] phisReal = new double[coefficients];
+    double[] phisImag = new double[coefficients];
+    for (int k = 0; k < coefficients; k++) {
+      phisReal[k] = Math.cos(2 * Math.PI * k / windowLength);
+      phisImag[k] = Math.sin(2 * Math.PI * k / windowLength);
+    }
+
+    for (int i = 0; i < samples.length; i++) {
+      double[] data = samples[i].getData();
+      int end = Math.max(0, data.length - windowLength + 1);
+      dfts[i] = new double[2 * coefficients * end];
+      errors[i] = getDftError(getMaxAbs(data, 0, data.length), windowLength, Math.min(end, RESYNC) - 1);
+
+      for (int w = 0; w < end; w++) {
+        int offset = 2 * coefficients * w;
+        if (w % RESYNC == 0) {
+          System.arraycopy(calcDFT(data, w, windowLength, coefficients, twiddles), 0, dfts[i], offset, 2 * coefficients);
+        } else {
+          int prev = offset - 2 * coefficients;
+          double delta = data[w + windowLength - 1] - data[w - 1];
+          for (int k = 0; k < coefficients; k++) {
+            double real = dfts[i][prev + 2 * k] + delta;
+            double imag = dfts[i][prev + 2 * k + 1];
+            dfts[i][offset + 2 * k] = real * phisReal[k] - imag * phisImag[k];
+            dfts[i][offset + 2 * k + 1] = real * phisImag[k] + imag * phisReal[k];
+          }
+        }
+      }
+    }
+    return dfts;
+  }
+
+  /**
+   * The first coefficients of the DFT of the window of the given length starting at start.
+   *
+   * @param twiddles the twiddle factors of the window length, see getTwiddles
+   */
+  protected static double[] calcDFT(double[] data, int start, int length, int coefficients, double[] twiddles) {
+    double[] dft = new double[2 * coefficients];
+    for (int k = 0; k < coefficients; k++) {
+      double real = 0.0;
+      double imag = 0.0;
+      for (int t = 0, index = 0; t < length; t++) {
+        real += data[start + t] * twiddles[2 * index];
+        imag -= data[start + t] * twiddles[2 * index + 1];
+        index = (index + k) % length;
+      }
+      dft[2 * k] = real;
+      dft[2 * k + 1] = imag;
+    }
+    return dft;
+  }
+
+  /**
+   * Bounds the absolute rounding error of the real and imaginary part of each coefficient
+   * of calcDFT, and of calcSlidingDFTs after the given number of slides. The absolute
+   * value of each coefficient is at most length * maxAbs. calcDFT sums length terms, and
+   * each slide adds the rounding errors of an addition and of the rotation by the phase.
+   *
+   * @param maxAbs the maximal absolute value of the data
+   */
+  protected static double getDftError(double maxAbs, int length, int slides) {
+    return DFT_ROUNDING * length * maxAbs * (length + 4.0 * Math.max(slides, 0));
+  }
+
+  protected static double getMaxAbs(double[] data, int start, int length) {
+    double maxAbs = 0.0;
+    for (int t = start; t < start + length; t++) {
+      maxAbs = Math.max(maxAbs, Math.abs(data[t]));
+    }
+    return maxAbs;
+  }
+
+  /**
+   * cos and sin of 2 pi t / length for all t < length
+   */
+  protected static double[] getTwiddles(int length) {
+    double[] twiddles = new double[2 * length];
+    for (int t = 0; t < length; t++) {
+      twiddles[2 * t] = Math.cos(2 * Math.PI * t / length);
+      twiddles[2 * t + 1] = Math.sin(2 * Math.PI * t / length);
+    }
+    return twiddles;
+  }
+
   protected static double getEuclideanDistance(
           TimeSeries ts,
           TimeSeries q,
@@ -236,23 +597,4 @@ public class ShotgunClassifier extends Classifier {
 
     return distance;
   }
-
-  protected static void calcMeansStds(
-          final int windowLength,
-          final TimeSeries[] trainSamples,
-          final double[][] means,
-          final double[][] stds,
-          boolean normMean) {
-    for (int i = 0; i < trainSamples.length; i++) {
-      int w = Math.min(windowLength, trainSamples[i].getLength());
-      means[i] = new double[trainSamples[i].getLength() - w + 1];
-      stds[i] = new double[trainSamples[i].getLength() - w + 1];
-      TimeSeries.calcIncrementalMeanStddev(w, trainSamples[i].getData(), means[i], stds[i]);
-      for (int j = 0; j < stds[i].length; j++) {
-        stds[i][j] = (stds[i][j] > 0 ? 1.0 / stds[i][j] : 1.0);
-        means[i][j] = normMean ? means[i][j] : 0;
-      }
-
-    }
-  }
 }
\ No newline at end of file
@@ -3,6 +3,7 @@
 package sfa.classification;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -98,18 +99,28 @@ public class ShotgunEnsembleClassifier extends ShotgunClassifier {
 
     final List<Integer> usedLengths = Collections.synchronizedList(new ArrayList<>(model.model.size()));
 
+    // a single instance of the cumulative sums of the train samples
+    for (int i = 1; i < model.size(); i++) {
+      model.get(i).shareDistanceProfile(model.get(0));
+    }
+
     // parallel execution
-    ParallelFor.withIndex(exec, threads, new ParallelFor.Each() {
+    final int blocks = getExecutionContext().getThreads();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
+        // the nearest neighbors of the previous window length
+        int[] neighbors = new int[testSamples.length];
+        Arrays.fill(neighbors, -1);
+
         // iterate each sample to classify
         for (int i = 0; i < model.model.size(); i++) {
-          if (i % threads == id) {
+          if (i % blocks == id) {
             final ShotgunModel score = model.model.get(i);
 
             usedLengths.add(score.windowLength);
 
-            Double[] labels = predict(score, testSamples);
+            Double[] labels = predict(score, testSamples, neighbors);
 
             for (int a = 0; a < labels.length; a++) {
               testLabels[a].add(new Pair<>(labels[a], score.score.training));
@@ -7,6 +7,7 @@ import libsvm.*;
 import sfa.timeseries.TimeSeries;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TEASER: A framework for early and accurate times series classification
@@ -38,10 +39,7 @@ public class TEASERClassifier extends Classifier {
   // the trained TEASER model
   EarlyClassificationModel model;
 
-  WEASELClassifier slaveClassifier;
-
   public TEASERClassifier() {
-    slaveClassifier = new WEASELClassifier();
     WEASELClassifier.lowerBounding = true;
     WEASELClassifier.solverType = SolverType.L2R_LR;
     WEASELClassifier.MAX_WINDOW_LENGTH = 250;
@@ -64,6 +62,31 @@ public class TEASERClassifier extends Classifier {
 
     public int[] offsets;
     public int threshold;
+
+    // one WEASEL classifier per offset, each holding the slave model of its offset
+    private transient WEASELClassifier[] slaveClassifiers;
+    private transient ExecutionContext slaveContext;
+
+    /**
+     * The slave classifiers of all offsets. A slave classifier is never assigned another
+     * model, and thus may be shared by concurrent predictions. The slave classifiers are
+     * created again, if asked for by a different execution context.
+     */
+    public synchronized WEASELClassifier[] getSlaveClassifiers(ExecutionContext context) {
+      if (this.slaveClassifiers == null || this.slaveContext != context) {
+        WEASELClassifier[] slaveClassifiers = new WEASELClassifier[this.slaveModels.length];
+        for (int s = 0; s < this.slaveModels.length; s++) {
+          if (this.slaveModels[s] != null) {
+            slaveClassifiers[s] = new WEASELClassifier();
+            slaveClassifiers[s].setModel(this.slaveModels[s]);
+            slaveClassifiers[s].setExecutionContext(context);
+          }
+        }
+        this.slaveClassifiers = slaveClassifiers;
+        this.slaveContext = context;
+      }
+      return this.slaveClassifiers;
+    }
   }
 
 
@@ -73,11 +96,15 @@ public class TEASERClassifier extends Classifier {
     int correct;
     int N;
 
-    public OffsetPrediction(double offset, Double[] labels, int correct, int N) {
+    // the offset each sample was decided at
+    int[] offsets;
+
+    public OffsetPrediction(double offset, Double[] labels, int correct, int N, int[] offsets) {
       this.offset = offset;
       this.correct = correct;
       this.labels = labels;
       this.N = N;
+      this.offsets = offsets;
     }
 
     public int getCorrect() {
@@ -108,7 +135,7 @@ public class TEASERClassifier extends Classifier {
     }
 
     // determine score
-    OffsetPrediction pred = predict(testSamples, true);
+    OffsetPrediction pred = predict(testSamples, true, model.threshold);
     int correctTesting = pred.getCorrect();
 
     if (DEBUG) {
@@ -144,33 +171,26 @@ public class TEASERClassifier extends Classifier {
 
       this.model = new EarlyClassificationModel();
 
+      // train the slave and master models of all offsets concurrently
+      final List<OffsetModels> tasks = new ArrayList<>();
       for (int s = 2; s <= S; s++) {
-        // train TEASER
         model.offsets[s] = (int) Math.round(step * s);
-        TimeSeries[] data = extractUntilOffset(samples, model.offsets[s], true);
-
         if (model.offsets[s] >= min) {
-          // train the time series classifier
-          Score score = this.slaveClassifier.fit(data);
-          Predictions result = this.slaveClassifier.predictProbabilities(data);
-
-          // train one class svm on ts classifier
-          model.slaveModels[s] = this.slaveClassifier.getModel();
-          model.masterModels[s] = fitSVM(samples, result.labels, result.probabilities, result.realLabels);
+          tasks.add(new OffsetModels(samples, s));
         }
       }
+      getExecutionContext().invokeAll(tasks);
 
       // train the best ratio between earliness and accuracy
       double bestF1 = -1;
       int bestCount = 1;
       for (int i = 2; i <= 5; i++) {
-        model.threshold = i;
-        OffsetPrediction off = predict(samples, false);
+        OffsetPrediction off = predict(samples, false, i);
         double correct = ((double) off.getCorrect()) / off.N;
         double earliness = 1.0 - off.offset / off.N;
 
         double harmonic_mean = 2 * correct * earliness / (correct + earliness);
-        System.out.println("Prediction:\t" + model.threshold + "\t" + off + "\t" + harmonic_mean);
+        System.out.println("Prediction:\t" + i + "\t" + off + "\t" + harmonic_mean);
 
         if (bestF1 < harmonic_mean) {
           bestF1 = harmonic_mean;
@@ -218,24 +238,66 @@ public class TEASERClassifier extends Classifier {
         labels.toArray(new int[][]{}),
         correct.toArray());
 
+    // evaluate all gammas concurrently
+    final svm_problem problem = problem_one_class;
+    final svm_parameter[] parameters = new svm_parameter[SVM_GAMMAS.length];
+    final double[] correct2 = new double[SVM_GAMMAS.length];
+    final List<Runnable> tasks = new ArrayList<>();
+    for (int g = 0; g < SVM_GAMMAS.length; g++) {
+      final int gg = g;
+      parameters[g] = initSVMParameters(SVM_GAMMAS[g]);
+      if (svm.svm_check_parameter(problem, parameters[g]) != null) {
+        System.out.println(svm.svm_check_parameter(problem, parameters[g]));
+      }
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          Double[] predictions = new Double[problem.l];
+          trainSVMOneClass(getExecutionContext(), problem, parameters[gg], 10, predictions, new Random(1));
+          correct2[gg] = evalLabels(problem.y, predictions).correct.get() / (double) problem.l;
+        }
+      });
+    }
+    getExecutionContext().invokeAll(tasks);
+
     svm_parameter best_parameter = null;
     double bestCorrect = -1;
-    for (double gamma : SVM_GAMMAS) {
-      svm_parameter parameter = initSVMParameters(gamma);
-      if (svm.svm_check_parameter(problem_one_class, parameter) != null) {
-        System.out.println(svm.svm_check_parameter(problem_one_class, parameter));
-      }
-      ;
-      Double[] predictions = new Double[problem_one_class.l];
-      trainSVMOneClass(problem_one_class, parameter, 10, predictions, new Random(1));
-      double correct2 = evalLabels(problem_one_class.y, predictions).correct.get() / (double) problem_one_class.l;
-
-      if (correct2 > bestCorrect) {
-        best_parameter = parameter;
-        bestCorrect = correct2;
+    for (int g = 0; g < SVM_GAMMAS.length; g++) {
+      if (correct2[g] > bestCorrect) {
+        best_parameter = parameters[g];
+        bestCorrect = correct2[g];
       }
     }
-    return svm.svm_train(problem_one_class, best_parameter);
+    return trainSVM(problem_one_class, best_parameter);
+  }
+
+  /**
+   * Trains the slave WEASEL model and the master one-class SVM of one offset. Each offset
+   * uses its own WEASEL classifier.
+   */
+  private class OffsetModels implements Runnable {
+    private final TimeSeries[] samples;
+    private final int s;
+
+    OffsetModels(TimeSeries[] samples, int s) {
+      this.samples = samples;
+      this.s = s;
+    }
+
+    @Override
+    public void run() {
+      TimeSeries[] data = extractUntilOffset(this.samples, model.offsets[this.s], true);
+
+      // train the time series classifier
+      WEASELClassifier slaveClassifier = new WEASELClassifier();
+      slaveClassifier.setExecutionContext(getExecutionContext());
+      slaveClassifier.fit(data);
+      Predictions result = slaveClassifier.predictProbabilities(data);
+
+      // train one class svm on ts classifier
+      model.slaveModels[this.s] = slaveClassifier.getModel();
+      model.masterModels[this.s] = fitSVM(this.samples, result.labels, result.probabilities, result.realLabels);
+    }
   }
 
   public TimeSeries[] extractUntilOffset(TimeSeries[] samples, int offset, boolean testing) {
@@ -250,7 +312,7 @@ public class TEASERClassifier extends Classifier {
     return offsetSamples.toArray(new TimeSeries[]{});
   }
 
-  public int getCount(DoubleIntHashMap counts, double prediction) {
+  public static int getCount(DoubleIntHashMap counts, double prediction) {
     int count = counts.get(prediction);
     if (count == 0) {
       counts.clear();
@@ -258,6 +320,15 @@ public class TEASERClassifier extends Classifier {
     return counts.addTo(prediction, 1);
   }
 
+  /**
+   * Creates a stream to classify a single time series value by value, as it arrives.
+   *
+   * @return a new stream for the trained model
+   */
+  public TEASERStream newStream() {
+    return new TEASERStream(this.model);
+  }
+
   @Override
   public Predictions score(final TimeSeries[] testSamples) {
     Double[] labels = predict(testSamples);
@@ -265,76 +336,106 @@ public class TEASERClassifier extends Classifier {
   }
 
   
+  /**
+   * Predicts the labels of the samples. May be called by concurrent threads.
+   */
   @Override
   public Double[] predict(final TimeSeries[] testSamples) {
-    return predict(testSamples, true).labels;
+    return predict(testSamples, true, model.threshold).labels;
   }
 
-  private OffsetPrediction predict(
+  OffsetPrediction predict(
       final TimeSeries[] testSamples,
-      final boolean testing) {
+      final boolean testing,
+      final int threshold) {
 
-    double avgOffset = 0;
-    int correct = 0;
-    int count = 0;
+    final EarlyClassificationModel model = this.model;
+    final WEASELClassifier[] slaveClassifiers = model.getSlaveClassifiers(getExecutionContext());
 
-    Double[] predictedLabels = new Double[testSamples.length];
-    int[] offsets = new int[testSamples.length];
-    DoubleIntHashMap[] predictions = new DoubleIntHashMap[testSamples.length];
+    final Double[] predictedLabels = new Double[testSamples.length];
+    final int[] offsets = new int[testSamples.length];
+    final DoubleIntHashMap[] predictions = new DoubleIntHashMap[testSamples.length];
     for (int i = 0; i < testSamples.length; i++) {
       predictions[i] = new DoubleIntHashMap();
     }
 
-    DoubleDoubleMap perClassEarliness = new DoubleDoubleHashMap();
-    DoubleIntMap perClassCount = new DoubleIntHashMap();
+    // the indices of the samples yet to be decided
+    final int[] undecided = new int[testSamples.length];
+    for (int i = 0; i < testSamples.length; i++) {
+      undecided[i] = i;
+    }
+    int remaining = testSamples.length;
 
-    predict:
-    for (int s = 0; s < model.slaveModels.length; s++) {
+    for (int s = 0; s < model.slaveModels.length && remaining > 0; s++) {
       if (model.masterModels[s] != null) {
-        // extract samples of length offset
-        TimeSeries[] data = extractUntilOffset(testSamples, model.offsets[s], testing);
-
-        this.slaveClassifier.setModel(model.slaveModels[s]); // TODO ugly
-        Predictions result = this.slaveClassifier.predictProbabilities(data);
-
-        for (int ind = 0; ind < data.length; ind++) {
-          if (predictedLabels[ind] == null) {
-            double predictedLabel = result.labels[ind];
-            double[] probabilities = result.probabilities[ind];
-
-            double predictNow = svm.svm_predict(
-                model.masterModels[s],
-                generateFeatures(probabilities, result.realLabels));
-
-            if (s >= S
-                || model.offsets[s] >= testSamples[ind].getLength()
-                || predictNow == 1
-                ) {
-              int counts = getCount(predictions[ind], predictedLabel);
-              if (counts >= model.threshold
-                  || s >= S
-                  || model.offsets[s] >= testSamples[ind].getLength()) {
-                predictedLabels[ind] = predictedLabel;
-                double earliness = Math.min(1.0, ((double) model.offsets[s] / testSamples[ind].getLength()));
-                avgOffset += earliness;
-
-                offsets[ind] = model.offsets[s];
-
-                perClassEarliness.addTo(testSamples[ind].getLabel(), earliness);
-                perClassCount.addTo(testSamples[ind].getLabel(), 1);
-
-                if (compareLabels(testSamples[ind].getLabel(), predictedLabel)) {
-                  correct++;
+        // extract the undecided samples of length offset
+        TimeSeries[] data = new TimeSeries[remaining];
+        for (int j = 0; j < remaining; j++) {
+          data[j] = testSamples[undecided[j]];
+        }
+        data = extractUntilOffset(data, model.offsets[s], testing);
+        final Predictions result = slaveClassifiers[s].predictProbabilities(data);
+
+        // apply the master model to each undecided sample
+        final int ss = s;
+        final int size = remaining;
+        final int blocks = getExecutionContext().getBlocks();
+        getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
+          @Override
+          public void run(int id, AtomicInteger processed) {
+            for (int j = 0; j < size; j++) {
+              if (j % blocks == id) {
+                int ind = undecided[j];
+                double predictedLabel = result.labels[j];
+                double[] probabilities = result.probabilities[j];
+
+                double predictNow = svm.svm_predict(
+                    model.masterModels[ss],
+                    generateFeatures(probabilities, result.realLabels));
+
+                if (ss >= S
+                    || model.offsets[ss] >= testSamples[ind].getLength()
+                    || predictNow == 1
+                    ) {
+                  int counts = getCount(predictions[ind], predictedLabel);
+                  if (counts >= threshold
+                      || ss >= S
+                      || model.offsets[ss] >= testSamples[ind].getLength()) {
+                    predictedLabels[ind] = predictedLabel;
+                    offsets[ind] = model.offsets[ss];
+                  }
                 }
-                count++;
               }
             }
           }
-          // no predictions to be made
-          if (count == testSamples.length) {
-            break predict;
+        });
+
+        // only the samples still undecided are passed on to the next offset
+        int k = 0;
+        for (int j = 0; j < remaining; j++) {
+          if (predictedLabels[undecided[j]] == null) {
+            undecided[k++] = undecided[j];
           }
         }
+        remaining = k;
+      }
+    }
+
+    double avgOffset = 0;
+    int correct = 0;
+    DoubleDoubleMap perClassEarliness = new DoubleDoubleHashMap();
+    DoubleIntMap perClassCount = new DoubleIntHashMap();
+    for (int ind = 0; ind < testSamples.length; ind++) {
+      if (predictedLabels[ind] != null) {
+        double earliness = Math.min(1.0, ((double) offsets[ind] / testSamples[ind].getLength()));
+        avgOffset += earliness;
+
+        perClassEarliness.addTo(testSamples[ind].getLabel(), earliness);
+        perClassCount.addTo(testSamples[ind].getLabel(), 1);
+
+        if (compareLabels(testSamples[ind].getLabel(), predictedLabels[ind])) {
+          correct++;
+        }
       }
     }
 
@@ -359,7 +460,8 @@ public class TEASERClassifier extends Classifier {
         avgOffset,
         predictedLabels,
         correct,
-        testSamples.length);
+        testSamples.length,
+        offsets);
   }
 
   public svm_parameter initSVMParameters(double gamma) {
@@ -382,7 +484,6 @@ public class TEASERClassifier extends Classifier {
       public void print(String s) {
       } // Disables svm output
     });
-    svm.rand.setSeed(1);
 
     svm_problem problem = new svm_problem();
     final svm_node[][] features = initLibSVM(probabilities, labels);
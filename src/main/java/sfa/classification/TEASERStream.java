@@ -0,0 +1,467 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import com.carrotsearch.hppc.DoubleArrayList;
+import com.carrotsearch.hppc.DoubleIntHashMap;
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntIntHashMap;
+import com.carrotsearch.hppc.cursors.IntIntCursor;
+import de.bwaldvogel.liblinear.FeatureNode;
+import de.bwaldvogel.liblinear.Linear;
+import libsvm.svm;
+import sfa.classification.Classifier.Words;
+import sfa.timeseries.TimeSeries;
+import sfa.transformation.RollingMFT;
+import sfa.transformation.SFA;
+import sfa.transformation.SFASupervised;
+import sfa.transformation.WEASEL;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Early classification of a single time series, that is consumed value by value.
+ * <p>
+ * TEASER predicts a prefix by transforming it from scratch at each offset. Instead, the
+ * stream advances one rolling MFT per window length by each new value, which is shared by
+ * the WEASEL models of all offsets yet to come. The SFA words of each new window are
+ * added to the bag of each of these offsets as they arrive. Only when an offset is reached,
+ * its slave and master models are applied to its bag.
+ * <p>
+ * The prefix of an offset is z-normalized as a whole in TEASER. As each window is
+ * normalized by its own standard deviation, this only affects the DC coefficient of the
+ * WEASEL models not normalizing the mean. For these, the DC coefficients are kept and
+ * quantized using the mean of the prefix, once the offset is reached. The labels are the
+ * same as those of TEASERClassifier.predict up to rounding errors at the bins of SFA.
+ * <p>
+ * The memory does not grow with the length of the time series: the values are kept in a
+ * ring buffer of the longest window length, the mean and deviation of the prefix are kept
+ * as rolling sums, and each offset keeps the words of the last windowLength windows for
+ * the bigrams. Only the words that use the DC coefficient are kept for the whole prefix,
+ * as their DC character is not known before the offset is reached.
+ * <p>
+ * A stream must not be shared by concurrent threads.
+ */
+public class TEASERStream {
+
+  private final TEASERClassifier.EarlyClassificationModel model;
+
+  // the offsets yet to be reached
+  private final List<Offset> pending = new ArrayList<>();
+
+  // the rolling MFT of each window length
+  private final RollingMFT[] mfts;
+
+  // the DC coefficient and the standard deviation of each window for each window length,
+  // if an offset does not normalize the mean
+  private final DoubleArrayList[] dcs;
+  private final DoubleArrayList[] stds;
+
+  // the number of Fourier values kept by the rolling MFT of each window length
+  private final int[] coefficients;
+
+  private final int highestBit = Words.binlog(Integer.highestOneBit(WEASELClassifier.MAX_WINDOW_LENGTH)) + 1;
+
+  // value i is found at i % capacity and i % capacity + capacity, such that each window
+  // of up to capacity - 1 values is contiguous
+  private double[] ring;
+  private final int capacity;
+  private int length = 0;
+
+  // rolling sums of the prefix, see TimeSeries.calculateMean and calculateStddev
+  private double sum = 0;
+  private double squares = 0;
+
+  // consecutive equal predictions of the slave models
+  private final DoubleIntHashMap counts = new DoubleIntHashMap();
+  private Offset last = null;
+  private Double lastLabel = null;
+
+  private Double label = null;
+  private int offset = -1;
+
+  /**
+   * The WEASEL model of one offset and its bag of patterns.
+   */
+  private final class Offset {
+    final int s;
+    final int offset;
+    final WEASELClassifier.WEASELModel slave;
+    final WEASEL weasel;
+    final long mask;
+    final int startOffset;
+
+    // the character of the DC coefficient in the words of each window length, or -1
+    final int[] dcCharacters;
+
+    // the SFA words of the last windowLength windows of each window length, for bigrams
+    final int[][] recent;
+
+    // the SFA words of all windows of each window length using the DC coefficient
+    final IntArrayList[] words;
+
+    // the features of the prefix by their index in the dictionary
+    final IntIntHashMap bag = new IntIntHashMap();
+
+    Offset(int s) {
+      this.s = s;
+      this.offset = model.offsets[s];
+      this.slave = model.slaveModels[s];
+      this.weasel = this.slave.weasel;
+      this.mask = (1L << (Words.binlog(this.weasel.alphabetSize) * this.slave.features)) - 1L;
+      this.startOffset = this.weasel.normMean ? 2 : 0;
+      this.recent = new int[this.weasel.windowLengths.length][];
+      this.words = new IntArrayList[this.weasel.windowLengths.length];
+      this.dcCharacters = new int[this.weasel.windowLengths.length];
+      for (int w = 0; w < this.dcCharacters.length; w++) {
+        this.dcCharacters[w] = getDCCharacter(w);
+      }
+    }
+
+    int getMinWindowLength() {
+      return this.weasel.windowLengths[0];
+    }
+
+    int getMaxWindowLength() {
+      return this.weasel.windowLengths[this.weasel.windowLengths.length - 1];
+    }
+
+    /**
+     * The number of Fourier values of window length index w, see MFT.transformWindowing.
+     */
+    int getCoefficients(int w) {
+      SFA sfa = this.weasel.signature[w];
+      return sfa.maxWordLength + this.startOffset;
+    }
+
+    /**
+     * The character of the DC coefficient in the SFA words of window length index w, or
+     * -1 if the DC coefficient is not used.
+     */
+    int getDCCharacter(int w) {
+      int[] bestValues = ((SFASupervised) this.weasel.signature[w]).bestValues;
+      if (!this.weasel.normMean) {
+        for (int a = 0; a < Math.min(bestValues.length, this.weasel.maxF); a++) {
+          if (bestValues[a] == 0) {
+            return a;
+          }
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Adds the SFA word of the current window of the rolling MFT. If the DC coefficient
+     * is used, its character is left to be set, once the offset is reached.
+     */
+    void addWindow(RollingMFT mft) {
+      int windowLength = mft.getWindowSize();
+      int w = windowLength - getMinWindowLength();
+      int t = length - windowLength;
+      SFASupervised sfa = (SFASupervised) this.weasel.signature[w];
+      double[] coefficients = mft.getCoefficients();
+
+      // see MFT.normalizeFT
+      double std = mft.getStddev();
+      double norm = (TimeSeries.APPLY_Z_NORM && std > 0 ? 1.0 / std : 1.0)
+          * (this.weasel.lowerBounding ? 1.0 / Math.sqrt(windowLength) : 1.0);
+      int mftLength = Math.min(windowLength, getCoefficients(w));
+      mftLength += mftLength % 2;
+      int values = Math.min(sfa.maxWordLength, mftLength - this.startOffset);
+
+      // see SFASupervised.quantization
+      int word = 0;
+      for (int a = 0; a < Math.min(sfa.bestValues.length, this.weasel.maxF); a++) {
+        int i = sfa.bestValues[a];
+        if (i != 0 || this.weasel.normMean) {
+          int sign = i % 2 == 0 ? 1 : -1;
+          double value = i < values ? coefficients[this.startOffset + i] * sign * norm : 0;
+          word |= quantize(sfa.bins[i], value) << (a * sfa.neededBits);
+        }
+      }
+
+      if (this.dcCharacters[w] >= 0) {
+        if (this.words[w] == null) {
+          this.words[w] = new IntArrayList();
+        }
+        this.words[w].add(word);
+      } else {
+        if (this.recent[w] == null) {
+          this.recent[w] = new int[windowLength];
+        }
+        int position = t % windowLength;
+        addPatterns(w, word, t - windowLength >= 0 ? this.recent[w][position] : 0);
+        this.recent[w][position] = word;
+      }
+    }
+
+    /**
+     * Adds the SFA words of all windows using the DC coefficient to the bag, once the
+     * DC coefficient can be quantized using the mean and deviation of the prefix.
+     */
+    void addDCs(double mean, double stddev) {
+      double inverseStddev = TimeSeries.APPLY_Z_NORM && stddev != 0 ? 1.0 / stddev : 1.0;
+      double dcMean = TimeSeries.APPLY_Z_NORM ? mean : 0;
+      for (int w = 0; w < this.words.length; w++) {
+        int a = this.dcCharacters[w];
+        if (this.words[w] != null) {
+          int windowLength = this.weasel.windowLengths[w];
+          SFA sfa = this.weasel.signature[w];
+          double lowerBounding = this.weasel.lowerBounding ? 1.0 / Math.sqrt(windowLength) : 1.0;
+          int[] words = this.words[w].buffer;
+          for (int t = 0; t < this.words[w].size(); t++) {
+            double std = stds[windowLength].get(t) * inverseStddev;
+            double norm = (TimeSeries.APPLY_Z_NORM && std > 0 ? 1.0 / std : 1.0) * lowerBounding;
+            double dc = (dcs[windowLength].get(t) - windowLength * dcMean) * inverseStddev * norm;
+            words[t] |= quantize(sfa.bins[0], dc) << (a * sfa.neededBits);
+            addPatterns(w, words[t], t - windowLength >= 0 ? words[t - windowLength] : 0);
+          }
+        }
+      }
+    }
+
+    /**
+     * Adds the uni- and bigram of a window to the bag, see WEASEL.createBagOfPatterns.
+     *
+     * @param w        the index of the window length
+     * @param sfaWord  the SFA word of the window
+     * @param previous the SFA word of the window windowLength before, or 0 if there is none
+     */
+    void addPatterns(int w, int sfaWord, int previous) {
+      long word = (sfaWord & this.mask) << highestBit | (long) w;
+      addFeature(this.weasel.dict.findWordIndex(WEASEL.hashUnigram(word, this.weasel.hashBits)));
+
+      // add 2 grams
+      long prevWord = (previous & this.mask);
+      if (prevWord != 0) {
+        addFeature(this.weasel.dict.findWordIndex(WEASEL.hashBigram(prevWord << 32 | word, this.weasel.hashBits)));
+      }
+    }
+
+    private void addFeature(int index) {
+      if (index > 0) {
+        this.bag.putOrAdd(index, 1, 1);
+      }
+    }
+
+    /**
+     * Applies the slave and the master model to the bag of the prefix.
+     *
+     * @return true, if the master model accepts the prediction
+     */
+    boolean predict() {
+      if (!this.weasel.normMean) {
+        double mean = sum / length;
+        double buf = 1.0 / length * squares - mean * mean;
+        addDCs(mean, buf > 0 ? Math.sqrt(buf) : 0);
+      }
+
+      FeatureNode[] features = new FeatureNode[this.bag.size()];
+      int i = 0;
+      for (IntIntCursor feature : this.bag) {
+        features[i++] = new FeatureNode(feature.key, feature.value);
+      }
+      Arrays.sort(features, new Comparator<FeatureNode>() {
+        public int compare(FeatureNode o1, FeatureNode o2) {
+          return Integer.compare(o1.index, o2.index);
+        }
+      });
+
+      double[] probabilities = new double[this.slave.linearModel.getNrClass()];
+      lastLabel = Linear.predictProbability(this.slave.linearModel, features, probabilities);
+      last = this;
+
+      double predictNow = svm.svm_predict(
+          model.masterModels[this.s],
+          TEASERClassifier.generateFeatures(probabilities, this.slave.linearModel.getLabels()));
+      return predictNow == 1;
+    }
+  }
+
+  /**
+   * Creates a stream for a trained TEASER model.
+   *
+   * @param model the trained TEASER model
+   */
+  public TEASERStream(TEASERClassifier.EarlyClassificationModel model) {
+    this.model = model;
+
+    int maxWindowLength = 0;
+    boolean normMean = true;
+    for (int s = 0; s < model.slaveModels.length; s++) {
+      if (model.masterModels[s] != null) {
+        Offset offset = new Offset(s);
+        this.pending.add(offset);
+        maxWindowLength = Math.max(maxWindowLength, offset.getMaxWindowLength());
+        normMean &= offset.weasel.normMean;
+      }
+    }
+
+    this.coefficients = new int[maxWindowLength + 1];
+    for (Offset offset : this.pending) {
+      for (int w = 0; w < offset.weasel.windowLengths.length; w++) {
+        int windowLength = offset.weasel.windowLengths[w];
+        this.coefficients[windowLength] = Math.max(this.coefficients[windowLength], offset.getCoefficients(w));
+      }
+    }
+    this.mfts = new RollingMFT[maxWindowLength + 1];
+    this.capacity = maxWindowLength + 1;
+    this.ring = new double[2 * this.capacity];
+    this.dcs = normMean ? null : new DoubleArrayList[maxWindowLength + 1];
+    this.stds = normMean ? null : new DoubleArrayList[maxWindowLength + 1];
+  }
+
+  /**
+   * Appends the next value of the time series. Once the label is determined, further
+   * values are ignored.
+   *
+   * @param value the next value
+   * @return the predicted label, or null if it is not yet determined
+   */
+  public Double update(double value) {
+    if (this.label != null) {
+      return this.label;
+    }
+
+    int position = this.length % this.capacity;
+    this.ring[position] = value;
+    this.ring[position + this.capacity] = value;
+    this.length++;
+    this.sum += value;
+    this.squares += value * value;
+
+    // add the new window of each window length to the offsets yet to come
+    for (int windowLength = 1; windowLength < this.mfts.length && windowLength <= this.length; windowLength++) {
+      RollingMFT mft = null;
+      for (Offset offset : this.pending) {
+        if (windowLength >= offset.getMinWindowLength() && windowLength <= offset.getMaxWindowLength()) {
+          if (mft == null) {
+            mft = moveMFT(windowLength);
+          }
+          offset.addWindow(mft);
+        }
+      }
+
+      // no offset yet to come uses the window length
+      if (mft == null) {
+        this.mfts[windowLength] = null;
+      }
+    }
+
+    // apply the models of the offset reached
+    Iterator<Offset> it = this.pending.iterator();
+    while (it.hasNext()) {
+      Offset offset = it.next();
+      if (offset.offset <= this.length) {
+        it.remove();
+        boolean predictNow = offset.predict();
+        if (offset.s >= TEASERClassifier.S || predictNow) {
+          int count = TEASERClassifier.getCount(this.counts, this.lastLabel);
+          if (count >= this.model.threshold || offset.s >= TEASERClassifier.S) {
+            decide(offset);
+            break;
+          }
+        }
+      }
+    }
+    return this.label;
+  }
+
+  /**
+   * Marks the end of the time series. If the label is not yet determined, the slave model
+   * of the next offset is applied to the complete time series, as in TEASER.
+   *
+   * @return the predicted label
+   */
+  public Double finish() {
+    if (this.label == null) {
+      if (this.last != null && this.last.offset == this.length) {
+        decide(this.last);
+      } else if (!this.pending.isEmpty()) {
+        Offset offset = this.pending.remove(0);
+        offset.predict();
+        decide(offset);
+      }
+    }
+    return this.label;
+  }
+
+  private void decide(Offset offset) {
+    this.label = this.lastLabel;
+    this.offset = offset.offset;
+    this.pending.clear();
+    this.last = null;
+    Arrays.fill(this.mfts, null);
+    this.ring = null;
+  }
+
+  /**
+   * Moves the rolling MFT of a window length to the new window. The rolling MFT is moved
+   * by each value from the first window on, as long as an offset yet to come uses the
+   * window length, such that the Fourier values are the same as those of
+   * MFT.transformWindowing.
+   */
+  private RollingMFT moveMFT(int windowLength) {
+    RollingMFT mft = this.mfts[windowLength];
+    if (mft == null) {
+      mft = new RollingMFT(windowLength, this.coefficients[windowLength]);
+      mft.reset(this.ring, (this.length - windowLength) % this.capacity);
+      this.mfts[windowLength] = mft;
+      if (this.dcs != null) {
+        this.dcs[windowLength] = new DoubleArrayList();
+        this.stds[windowLength] = new DoubleArrayList();
+      }
+    } else {
+      mft.slide(
+          this.ring[(this.length - 1) % this.capacity],
+          this.ring[(this.length - 1 - windowLength) % this.capacity]);
+    }
+    if (this.dcs != null) {
+      this.dcs[windowLength].add(mft.getCoefficients()[0]);
+      this.stds[windowLength].add(mft.getStddev());
+    }
+    return mft;
+  }
+
+  /**
+   * Looks up the character of a value, see SFA.quantization.
+   */
+  private static int quantize(double[] bins, double value) {
+    int c = 0;
+    for (; c < bins.length; c++) {
+      if (value < bins[c]) {
+        break;
+      }
+    }
+    return c;
+  }
+
+  public boolean isDecided() {
+    return this.label != null;
+  }
+
+  /**
+   * The predicted label, or null if it is not yet determined.
+   */
+  public Double getLabel() {
+    return this.label;
+  }
+
+  /**
+   * The offset, at which the label was determined, or -1.
+   */
+  public int getOffset() {
+    return this.offset;
+  }
+
+  /**
+   * The number of values consumed.
+   */
+  public int getLength() {
+    return this.length;
+  }
+}
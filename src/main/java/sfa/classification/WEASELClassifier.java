@@ -37,15 +37,21 @@ public class WEASELClassifier extends Classifier {
 
   public static boolean lowerBounding = false;
 
+  // hash uni- and bigrams into 2^hashBits buckets each instead of using a dictionary.
+  // Bounds memory for large feature spaces at the cost of feature collisions. 0 disables hashing.
+  public static int hashBits = 0;
+
   public static int MIN_WINDOW_LENGTH = 2;
   public static int MAX_WINDOW_LENGTH = 350;
 
   // the trained weasel
   WEASELModel model;
 
+  // per-thread scratch buffer for the decision values of single sample predictions
+  private static final ThreadLocal<double[]> scores = new ThreadLocal<>();
+
   public WEASELClassifier() {
     super();
-    Linear.resetRandom();
     Linear.disableDebugOutput();
   }
 
@@ -130,11 +136,12 @@ public class WEASELClassifier extends Classifier {
 
     // iterate each sample to classify
     final BagOfBigrams[] bagTest = new BagOfBigrams[samples.length];
-    ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
+    final int blocks = getExecutionContext().getBlocks();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
         for (int w = 0; w < model.weasel.windowLengths.length; w++) {
-          if (w % BLOCKS == id) {
+          if (w % blocks == id) {
             int[][] wordsTest = model.weasel.createWords(samples, w);
             BagOfBigrams[] bopForWindow = model.weasel.createBagOfPatterns(wordsTest, samples, w, model.features);
             model.weasel.dict.filterChiSquared(bopForWindow);
@@ -147,11 +154,11 @@ public class WEASELClassifier extends Classifier {
     FeatureNode[][] features = initLibLinear(bagTest, model.weasel.dict);
     Double[] labels = new Double[samples.length];
 
-    ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
         for (int ind = 0; ind < features.length; ind++) {
-          if (ind % BLOCKS == id) {
+          if (ind % blocks == id) {
             double label = Linear.predict(model.linearModel, features[ind]);
             labels[ind] = label;
           }
@@ -162,17 +169,67 @@ public class WEASELClassifier extends Classifier {
     return labels;
   }
 
+  /**
+   * Low latency prediction of a single sample. Runs on the calling thread and computes the
+   * linear decision values directly from the SFA words of each window length, i.e. without
+   * building a bag of patterns or liblinear features.
+   *
+   * @param sample the sample to classify
+   * @return the predicted label
+   */
+  public Double predict(TimeSeries sample) {
+    de.bwaldvogel.liblinear.Model linearModel = model.linearModel;
+    int nrClass = linearModel.getNrClass();
+    int nrW = nrClass == 2 && linearModel.getSolverType() != SolverType.MCSVM_CS ? 1 : nrClass;
+    double[] weights = linearModel.getFeatureWeights();
+
+    double[] decValues = scores.get();
+    if (decValues == null || decValues.length < nrW) {
+      decValues = new double[nrW];
+      scores.set(decValues);
+    }
+    Arrays.fill(decValues, 0, nrW, 0.0);
+
+    for (int w = 0; w < model.weasel.windowLengths.length; w++) {
+      int[] words = model.weasel.createWords(sample, w);
+      model.weasel.accumulateScores(words, w, model.features, weights, nrW, decValues);
+    }
+
+    // same decision rule as liblinear
+    int[] labels = linearModel.getLabels();
+    if (nrClass == 2 && nrW == 1) {
+      return (double) (decValues[0] > 0 ? labels[0] : labels[1]);
+    }
+    int best = 0;
+    for (int c = 1; c < nrClass; c++) {
+      if (decValues[c] > decValues[best]) {
+        best = c;
+      }
+    }
+    return (double) labels[best];
+  }
+
+  /**
+   * Compiles the trained model into a flat weight table for low latency inference.
+   *
+   * @return the compiled model
+   */
+  public CompiledWEASELModel compile() {
+    return new CompiledWEASELModel(this.model);
+  }
+
   public Predictions predictProbabilities(TimeSeries[] samples) {
     final Double[] labels = new Double[samples.length];
     final double[][] probabilities = new double[samples.length][];
 
     // iterate each sample to classify
     final BagOfBigrams[] bagTest = new BagOfBigrams[samples.length];
-    ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
+    final int blocks = getExecutionContext().getBlocks();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
         for (int w = 0; w < model.weasel.windowLengths.length; w++) {
-          if (w % BLOCKS == id) {
+          if (w % blocks == id) {
             int[][] wordsTest = model.weasel.createWords(samples, w);
             BagOfBigrams[] bopForWindow = model.weasel.createBagOfPatterns(wordsTest, samples, w, model.features);
             model.weasel.dict.filterChiSquared(bopForWindow);
@@ -184,11 +241,11 @@ public class WEASELClassifier extends Classifier {
 
     FeatureNode[][] features = initLibLinear(bagTest, model.weasel.dict);
 
-    ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
         for (int ind = 0; ind < features.length; ind++) {
-          if (ind % BLOCKS == id) {
+          if (ind % blocks == id) {
             probabilities[ind] = new double[model.linearModel.getNrClass()];
             labels[ind] = Linear.predictProbability(model.linearModel, features[ind], probabilities[ind]);
           }
@@ -220,7 +277,8 @@ public class WEASELClassifier extends Classifier {
       optimize:
       for (final boolean mean : NORMALIZATION) {
         int[] windowLengths = getWindowLengths(samples, mean);
-        WEASEL model = new WEASEL(maxF, maxS, windowLengths, mean, lowerBounding);
+        WEASEL model = new WEASEL(maxF, maxS, windowLengths, mean, lowerBounding, hashBits);
+        model.setExecutionContext(getExecutionContext());
         final int[][][] words = model.createWords(samples);
 
         for (int f = minF; f <= maxF; f += 2) {
@@ -229,11 +287,12 @@ public class WEASELClassifier extends Classifier {
           final BagOfBigrams[] bop = new BagOfBigrams[samples.length];
           final int ff = f;
 
-          ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
+          final int blocks = getExecutionContext().getBlocks();
+          getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
             @Override
             public void run(int id, AtomicInteger processed) {
               for (int w = 0; w < model.windowLengths.length; w++) {
-                if (w % BLOCKS == id) {
+                if (w % blocks == id) {
                   BagOfBigrams[] bobForOneWindow = fitOneWindow(
                       samples,
                       model.windowLengths, mean,
@@ -249,7 +308,7 @@ public class WEASELClassifier extends Classifier {
 
           if (DEBUG)
             System.out.println("Train Dict Size: " + model.dict.size() + " Memory: " + getUsedMemory() + " MB");
-          int correct = trainLibLinear(problem, solverType, c, iterations, eps, folds);
+          int correct = trainLibLinear(getExecutionContext(), problem, solverType, c, iterations, eps, folds);
 
           if (correct > maxCorrect) {
             maxCorrect = correct;
@@ -264,21 +323,24 @@ public class WEASELClassifier extends Classifier {
 
       // obtain the final matrix
       int[] windowLengths = getWindowLengths(samples, bestNorm);
-      WEASEL model = new WEASEL(maxF, maxS, windowLengths, bestNorm, lowerBounding);
+      WEASEL model = new WEASEL(maxF, maxS, windowLengths, bestNorm, lowerBounding, hashBits);
+      model.setExecutionContext(getExecutionContext());
+
+      final int[][][] words = model.createWords(samples);
 
       final BagOfBigrams[] bop = new BagOfBigrams[samples.length];
       final boolean mean = bestNorm;
       final int ff = bestF;
-      ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
+      final int blocks = getExecutionContext().getBlocks();
+      getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
         @Override
         public void run(int id, AtomicInteger processed) {
           for (int w = 0; w < model.windowLengths.length; w++) {
-            if (w % BLOCKS == id) {
-              int[][] words = model.createWords(samples, w);
+            if (w % blocks == id) {
               BagOfBigrams[] bobForOneWindow = fitOneWindow(
                   samples,
                   model.windowLengths, mean,
-                  words, ff, w);
+                  words[w], ff, w);
               mergeBobs(bop, bobForOneWindow);
             }
           }
@@ -289,7 +351,7 @@ public class WEASELClassifier extends Classifier {
       Problem problem = initLibLinearProblem(bop, model.dict, bias);
       if (DEBUG)
         System.out.println("Final Dict Size: " + model.dict.size() + " Memory: " + getUsedMemory() + " MB");
-      de.bwaldvogel.liblinear.Model linearModel = Linear.train(problem, new Parameter(solverType, c, iterations, eps));
+      de.bwaldvogel.liblinear.Model linearModel = trainLinear(problem, new Parameter(solverType, c, iterations, eps));
 
       return new WEASELModel(
           bestNorm,
@@ -314,7 +376,7 @@ public class WEASELClassifier extends Classifier {
       boolean mean,
       int[][] word, int f,
       int w) {
-    WEASEL modelForWindow = new WEASEL(f, maxS, windowLengths, mean, lowerBounding);
+    WEASEL modelForWindow = new WEASEL(f, maxS, windowLengths, mean, lowerBounding, hashBits);
     BagOfBigrams[] bopForWindow = modelForWindow.createBagOfPatterns(word, samples, w, f);
     modelForWindow.trainChiSquared(bopForWindow, chi);
     //modelForWindow.trainAnova(bopForWindow, p_value);
@@ -329,7 +391,10 @@ public class WEASELClassifier extends Classifier {
         bop[i] = bopForWindow[i];
       }
       else {
-        bop[i].bob.putAll(bopForWindow[i].bob);
+        // hashed features of different windows may collide
+        for (LongIntCursor word : bopForWindow[i].bob) {
+          bop[i].bob.putOrAdd(word.key, word.value, word.value);
+        }
       }
     }
   }
@@ -338,7 +403,6 @@ public class WEASELClassifier extends Classifier {
       final BagOfBigrams[] bob,
       final Dictionary dict,
       final double bias) {
-    Linear.resetRandom();
     Linear.disableDebugOutput();
 
     Problem problem = new Problem();
@@ -2,12 +2,13 @@
 // Distributed under the GLP 3.0 (See accompanying file LICENSE)
 package sfa.transformation;
 
-import com.carrotsearch.hppc.IntIntHashMap;
 import sfa.classification.Classifier.Words;
+import sfa.classification.ExecutionContext;
 import sfa.classification.ParallelFor;
 import sfa.timeseries.TimeSeries;
 import sfa.transformation.SFA.HistogramType;
 
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -25,18 +26,8 @@ public class BOSS {
   public boolean normMean;
   public SFA signature;
 
-  public final static int BLOCKS;
-
-  static {
-    Runtime runtime = Runtime.getRuntime();
-    if (runtime.availableProcessors() <= 4) {
-      BLOCKS = 8;
-    } else {
-      BLOCKS = runtime.availableProcessors();
-    }
-
-    //    BLOCKS = 1; // for testing purposes
-  }
+  // the threads for the parallel work, or null for the default context
+  private transient ExecutionContext context;
 
   public BOSS(){}
 
@@ -57,20 +48,39 @@ public class BOSS {
   }
 
   /**
-   * The BOSS boss: a histogram of SFA word frequencies
+   * The BOSS boss: a histogram of SFA word frequencies.
+   * <p>
+   * The histogram is stored as sorted word and count arrays, which need less memory
+   * than a hash map and are scanned sequentially by the 1-NN search and BOSSVS.
    */
   public static class BagOfPattern {
-    public IntIntHashMap bag;
     public Double label;
 
+    // the histogram: the words in ascending order and their counts
+    public int[] words;
+    public int[] counts;
+
     public BagOfPattern() { }
 
-    public BagOfPattern(int size, Double label) {
-      this.bag = new IntIntHashMap(size);
-      this.label = label;
+    /**
+     * The number of distinct words
+     */
+    public int size() {
+      return this.words.length;
     }
   }
 
+  /**
+   * The execution context of the parallel word extraction.
+   */
+  public ExecutionContext getExecutionContext() {
+    return this.context != null ? this.context : ExecutionContext.getDefault();
+  }
+
+  public void setExecutionContext(ExecutionContext context) {
+    this.context = context;
+  }
+
   /**
    * Create SFA words for all samples
    *
@@ -87,11 +97,12 @@ public class BOSS {
     }
 
     // create sliding windows
-    ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
+    final int blocks = getExecutionContext().getBlocks();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
         for (int i = 0; i < samples.length; i++) {
-          if (i % BLOCKS == id) {
+          if (i % blocks == id) {
             short[][] sfaWords = BOSS.this.signature.transformWindowing(samples[i]);
             words[i] = new int[sfaWords.length];
             for (int j = 0; j < sfaWords.length; j++) {
@@ -106,7 +117,7 @@ public class BOSS {
   }
 
   /**
-   * Create the BOSS boss for a fixed window-queryLength and SFA word queryLength
+   * Create the BOSS boss for a fixed window-queryLength and SFA word queryLength.
    *
    * @param words      the SFA words of the time series
    * @param samples    the samples to be transformed
@@ -117,30 +128,92 @@ public class BOSS {
       final int[][] words,
       final TimeSeries[] samples,
       final int wordLength) {
-    BagOfPattern[] bagOfPatterns = new BagOfPattern[words.length];
+    return createBagOfPatterns(words, samples, wordLength, wordLength)[0];
+  }
+
+  /**
+   * Create the BOSS boss for all even SFA word lengths minF, minF+2, ..., maxF in one
+   * pass over the words. The words of shorter lengths are obtained by masking the words
+   * of length maxF.
+   *
+   * @param words   the SFA words of the time series
+   * @param samples the samples to be transformed
+   * @param minF    the shortest SFA word queryLength
+   * @param maxF    the longest SFA word queryLength
+   * @return returns a BOSS boss for each word length (f-minF)/2 and each time series in samples
+   */
+  public BagOfPattern[][] createBagOfPatterns(
+      final int[][] words,
+      final TimeSeries[] samples,
+      final int minF,
+      final int maxF) {
+    final int lengths = (maxF - minF) / 2 + 1;
+    BagOfPattern[][] bagOfPatterns = new BagOfPattern[lengths][words.length];
 
     final byte usedBits = (byte) Words.binlog(this.symbols);
-    // FIXME
-    // final long mask = (usedBits << wordLength) - 1l;
-    final long mask = (1L << (usedBits * wordLength)) - 1L;
+    final long[] masks = new long[lengths];
+    for (int l = 0; l < lengths; l++) {
+      masks[l] = (1L << (usedBits * (minF + 2 * l))) - 1L;
+    }
+
+    int[][] buffer = new int[lengths][];
+    int[] size = new int[lengths];
+    long[] lastWord = new long[lengths];
 
     // iterate all samples
     for (int j = 0; j < words.length; j++) {
-      bagOfPatterns[j] = new BagOfPattern(words[j].length, samples[j].getLabel());
+      for (int l = 0; l < lengths; l++) {
+        if (buffer[l] == null || buffer[l].length < words[j].length) {
+          buffer[l] = new int[words[j].length];
+        }
+      }
+      Arrays.fill(size, 0);
+      Arrays.fill(lastWord, Long.MIN_VALUE);
 
       // create subsequences
-      long lastWord = Long.MIN_VALUE;
-
       for (int offset = 0; offset < words[j].length; offset++) {
-        // use the words of larger queryLength to get words of smaller lengths
-        long word = words[j][offset] & mask;
-        if (word != lastWord) { // ignore adjacent samples
-          bagOfPatterns[j].bag.putOrAdd((int) word, (short) 1, (short) 1);
+        for (int l = 0; l < lengths; l++) {
+          // use the words of larger queryLength to get words of smaller lengths
+          long word = words[j][offset] & masks[l];
+          if (word != lastWord[l]) { // ignore adjacent samples
+            buffer[l][size[l]++] = (int) word;
+          }
+          lastWord[l] = word;
         }
-        lastWord = word;
+      }
+
+      for (int l = 0; l < lengths; l++) {
+        bagOfPatterns[l][j] = createBag(buffer[l], size[l], samples[j].getLabel());
       }
     }
 
     return bagOfPatterns;
   }
+
+  /**
+   * Counts the first size words and returns their bag. Sorts the words in place.
+   */
+  private static BagOfPattern createBag(int[] words, int size, Double label) {
+    Arrays.sort(words, 0, size);
+
+    int distinct = 0;
+    for (int i = 0; i < size; i++) {
+      if (i == 0 || words[i] != words[i - 1]) {
+        distinct++;
+      }
+    }
+
+    BagOfPattern bag = new BagOfPattern();
+    bag.label = label;
+    bag.words = new int[distinct];
+    bag.counts = new int[distinct];
+    int k = -1;
+    for (int i = 0; i < size; i++) {
+      if (i == 0 || words[i] != words[i - 1]) {
+        bag.words[++k] = words[i];
+      }
+      bag.counts[k]++;
+    }
+    return bag;
+  }
 }
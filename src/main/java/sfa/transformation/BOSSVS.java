@@ -63,14 +63,79 @@ public class BOSSVS extends BOSS {
     ObjectObjectHashMap<Double, IntFloatHashMap> matrix = new ObjectObjectHashMap<>(
         uniqueLabels.size());
     initMatrix(matrix, uniqueLabels, bagOfPatterns);
+    addWordFrequencies(matrix, bagOfPatterns, sampleIndices, 1);
 
+    return createTfIdf(matrix, uniqueLabels);
+  }
+
+  /**
+   * Obtains the word frequencies of each class based on the BOSS representation of all
+   * time series.
+   *
+   * @param bagOfPatterns The BOSS (bag-of-patterns) representation of the time series
+   * @param uniqueLabels  The unique class labels in the data set
+   * @return              returns the word frequencies of each class
+   */
+  public ObjectObjectHashMap<Double, IntFloatHashMap> createWordFrequencies(
+      final BagOfPattern[] bagOfPatterns,
+      final Set<Double> uniqueLabels) {
+    ObjectObjectHashMap<Double, IntFloatHashMap> matrix = new ObjectObjectHashMap<>(
+        uniqueLabels.size());
+    initMatrix(matrix, uniqueLabels, bagOfPatterns);
+    addWordFrequencies(matrix, bagOfPatterns, createIndices(bagOfPatterns.length), 1);
+    return matrix;
+  }
+
+  /**
+   * Obtains the TF-IDF representation of all but the held out time series (useful for
+   * cross-validation). Instead of summing the word frequencies of the remaining time
+   * series, the word frequencies of the held out time series are subtracted from those
+   * of all time series.
+   *
+   * @param wordFrequencies The word frequencies of all time series, see createWordFrequencies
+   * @param bagOfPatterns   The BOSS (bag-of-patterns) representation of the time series
+   * @param heldOutIndices  The indices to leave out
+   * @param uniqueLabels    The unique class labels in the data set
+   * @return                returns the tf-idf boss for the remaining time series
+   */
+  public ObjectObjectHashMap<Double, IntFloatHashMap> createTfIdf(
+      final ObjectObjectHashMap<Double, IntFloatHashMap> wordFrequencies,
+      final BagOfPattern[] bagOfPatterns,
+      final int[] heldOutIndices,
+      final Set<Double> uniqueLabels) {
+
+    ObjectObjectHashMap<Double, IntFloatHashMap> matrix = new ObjectObjectHashMap<>(
+        uniqueLabels.size());
+    for (ObjectObjectCursor<Double, IntFloatHashMap> stat : wordFrequencies) {
+      matrix.put(stat.key, new IntFloatHashMap(stat.value));
+    }
+    addWordFrequencies(matrix, bagOfPatterns, heldOutIndices, -1);
+
+    return createTfIdf(matrix, uniqueLabels);
+  }
+
+  protected void addWordFrequencies(
+      final ObjectObjectHashMap<Double, IntFloatHashMap> matrix,
+      final BagOfPattern[] bagOfPatterns,
+      final int[] sampleIndices,
+      final int sign) {
     for (int j : sampleIndices) {
       Double label = bagOfPatterns[j].label;
       IntFloatHashMap wordInBagFreq = matrix.get(label);
-      for (IntIntCursor key : bagOfPatterns[j].bag) {
-        wordInBagFreq.putOrAdd(key.key, key.value, key.value);
+      int[] words = bagOfPatterns[j].words;
+      int[] counts = bagOfPatterns[j].counts;
+      for (int k = 0; k < words.length; k++) {
+        wordInBagFreq.putOrAdd(words[k], sign * counts[k], sign * counts[k]);
       }
     }
+  }
+
+  /**
+   * Turns the word frequencies of each class into the normed TF-IDF values in place.
+   */
+  protected ObjectObjectHashMap<Double, IntFloatHashMap> createTfIdf(
+      final ObjectObjectHashMap<Double, IntFloatHashMap> matrix,
+      final Set<Double> uniqueLabels) {
 
     // count the number of classes where the word is present
     IntShortHashMap wordInClassFreq = new IntShortHashMap(matrix.iterator().next().value.size());
@@ -78,7 +143,9 @@ public class BOSSVS extends BOSS {
     for (ObjectCursor<IntFloatHashMap> stat : matrix.values()) {
       // count the occurrence of words
       for (IntFloatCursor key : stat.value) {
-        wordInClassFreq.putOrAdd(key.key, (short) 1, (short) 1);
+        if (key.value > 0) {
+          wordInClassFreq.putOrAdd(key.key, (short) 1, (short) 1);
+        }
       }
     }
 
@@ -116,7 +183,7 @@ public class BOSSVS extends BOSS {
     for (Double label : uniqueLabels) {
       IntFloatHashMap stat = matrix.get(label);
       if (stat == null) {
-        matrix.put(label, new IntFloatHashMap(bag[0].bag.size() * bag.length));
+        matrix.put(label, new IntFloatHashMap(bag[0].size() * bag.length));
       } else {
         stat.clear();
       }
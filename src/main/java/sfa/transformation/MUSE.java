@@ -3,17 +3,18 @@
 package sfa.transformation;
 
 import com.carrotsearch.hppc.*;
-import com.carrotsearch.hppc.cursors.IntIntCursor;
 import com.carrotsearch.hppc.cursors.LongDoubleCursor;
-
-import com.carrotsearch.hppc.cursors.ObjectIntCursor;
+import com.carrotsearch.hppc.cursors.LongIntCursor;
 import sfa.classification.Classifier;
+import sfa.classification.ExecutionContext;
 import sfa.classification.MUSEClassifier;
 import sfa.classification.ParallelFor;
 import sfa.timeseries.MultiVariateTimeSeries;
 import sfa.timeseries.TimeSeries;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -37,16 +38,16 @@ public class MUSE {
   public SFA[][] signature;
   public Dictionary dict;
 
-  public final static int BLOCKS;
+  // the layout of the packed features (from the highest to the lowest bits):
+  // dimension, window length index, SFA word and the second SFA word of a bigram
+  public int wordBits;
+  public int windowBits;
 
-  static {
-    Runtime runtime = Runtime.getRuntime();
-    if (runtime.availableProcessors() <= 4) {
-      BLOCKS = 8;
-    } else {
-      BLOCKS = runtime.availableProcessors();
-    }
-  }
+  // the dimensions to extract words from, or null for all dimensions
+  public boolean[] usedDimensions;
+
+  // the threads for the parallel work, or null for the default context
+  private transient ExecutionContext context;
 
   /**
    * Create a WEASEL+MUSE model.
@@ -75,21 +76,35 @@ public class MUSE {
     this.dict = new Dictionary();
     this.signature = new SFA[windowLengths.length][];
     this.histogramType = histogramType;
+    this.wordBits = Classifier.Words.binlog(maxS) * this.maxF;
+    this.windowBits = getBits(windowLengths.length);
   }
 
   /**
-   * The MUSE model: a histogram of SFA word and bi-gram frequencies
+   * The MUSE model: a histogram of SFA word and bi-gram frequencies. The features are
+   * packed into longs (see createWord).
    */
   public static class BagOfBigrams {
-    public ObjectIntHashMap<MuseWord> bob;
+    public LongIntHashMap bob;
     public Double label;
 
     public BagOfBigrams(int size, Double label) {
-      this.bob = new ObjectIntHashMap<MuseWord>(size);
+      this.bob = new LongIntHashMap(size);
       this.label = label;
     }
   }
 
+  /**
+   * The execution context of the parallel word extraction.
+   */
+  public ExecutionContext getExecutionContext() {
+    return this.context != null ? this.context : ExecutionContext.getDefault();
+  }
+
+  public void setExecutionContext(ExecutionContext context) {
+    this.context = context;
+  }
+
   /**
    * Create SFA words and bigrams for all samples
    *
@@ -99,11 +114,12 @@ public class MUSE {
   public int[][][] createWords(final MultiVariateTimeSeries[] samples) {
     // create bag of words for each window length
     final int[][][] words = new int[this.windowLengths.length][samples.length][];
-    ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
+    final int blocks = getExecutionContext().getBlocks();
+    getExecutionContext().withIndex(blocks, new ParallelFor.Each() {
       @Override
       public void run(int id, AtomicInteger processed) {
         for (int w = 0; w < MUSE.this.windowLengths.length; w++) {
-          if (w % BLOCKS == id) {
+          if (w % blocks == id) {
             words[w] = createWords(samples, w);
           }
         }
@@ -113,42 +129,194 @@ public class MUSE {
   }
 
   /**
-   * Create SFA words and bigrams for all samples
+   * Create SFA words and bigrams for all samples. Each dimension fits its SFA quantization
+   * and transforms its time series as an independent task. Unused dimensions have no words.
    *
    * @param mtsSamples
    * @return
    */
   public int[/*sample size*/][] createWords(final MultiVariateTimeSeries[] mtsSamples, final int index) {
+    final int dimensions = mtsSamples[0].getDimensions();
+    final int[][] words = new int[mtsSamples.length * dimensions][];
 
     // SFA quantization
-    if (this.signature[index] == null) {
-      this.signature[index] = new SFA[mtsSamples[0].getDimensions()]; 
-      for (int i = 0; i < this.signature[index].length; i++) {
-        this.signature[index][i] = new SFA(this.histogramType, false); // TODO true?
-        this.signature[index][i].fitWindowing(
-            mtsSamples, this.windowLengths[index], this.maxF, this.alphabetSize, this.normMean, this.lowerBounding, i);
+    final boolean fit = this.signature[index] == null;
+    if (fit) {
+      this.signature[index] = new SFA[dimensions];
+    }
+
+    final List<DimensionWords> tasks = new ArrayList<>(dimensions);
+    for (int dim = 0; dim < dimensions; dim++) {
+      if (this.usedDimensions == null || this.usedDimensions[dim]) {
+        tasks.add(new DimensionWords(mtsSamples, index, dim, fit, words));
+      } else {
+        for (int i = 0; i < mtsSamples.length; i++) {
+          words[i * dimensions + dim] = new int[]{};
+        }
       }
     }
+    getExecutionContext().invokeAll(tasks);
+
+    return words;
+  }
 
-    // create words
-    final int[][] words = new int[mtsSamples.length * mtsSamples[0].getDimensions()][];
-    int pos = 0;
-    for (MultiVariateTimeSeries mts : mtsSamples) {
-      int i = 0;      
-      for (TimeSeries timeSeries : mts.timeSeries) {
-        if (timeSeries.getLength() >= this.windowLengths[index]) {
-          words[pos] = this.signature[index][i].transformWindowingInt(timeSeries, this.maxF);
+  /**
+   * Fits the SFA quantization of one dimension and creates the words of all samples in
+   * this dimension.
+   */
+  private class DimensionWords implements Runnable {
+    private final MultiVariateTimeSeries[] mtsSamples;
+    private final int index;
+    private final int dim;
+    private final boolean fit;
+    private final int[][] words;
+
+    DimensionWords(MultiVariateTimeSeries[] mtsSamples, int index, int dim, boolean fit, int[][] words) {
+      this.mtsSamples = mtsSamples;
+      this.index = index;
+      this.dim = dim;
+      this.fit = fit;
+      this.words = words;
+    }
+
+    @Override
+    public void run() {
+      SFA sfa;
+      if (this.fit) {
+        sfa = new SFA(MUSE.this.histogramType, false); // TODO true?
+        sfa.fitWindowing(
+            this.mtsSamples, MUSE.this.windowLengths[this.index], MUSE.this.maxF,
+            MUSE.this.alphabetSize, MUSE.this.normMean, MUSE.this.lowerBounding, this.dim);
+        MUSE.this.signature[this.index][this.dim] = sfa;
+      } else {
+        sfa = MUSE.this.signature[this.index][this.dim];
+      }
+
+      int dimensions = this.mtsSamples[0].getDimensions();
+      for (int i = 0; i < this.mtsSamples.length; i++) {
+        TimeSeries timeSeries = this.mtsSamples[i].timeSeries[this.dim];
+        if (timeSeries.getLength() >= MUSE.this.windowLengths[this.index]) {
+          this.words[i * dimensions + this.dim] = sfa.transformWindowingInt(timeSeries, MUSE.this.maxF);
         } else {
-          words[pos] = new int[]{};
+          this.words[i * dimensions + this.dim] = new int[]{};
         }
-        i++;
-        pos++;
       }
     }
+  }
 
-    return words;
+  /**
+   * Ranks the dimensions by the one-way ANOVA F-value of simple features of their time
+   * series: the mean, the standard deviation and the first Fourier coefficients. Only
+   * every k-th sample is used, such that at most maxSamples samples are evaluated.
+   *
+   * @param samples       the train samples
+   * @param maxDimensions the number of dimensions to keep
+   * @param maxSamples    the maximal number of samples to use
+   * @return the dimensions with the highest F-values
+   */
+  public static boolean[] selectDimensions(
+      final MultiVariateTimeSeries[] samples,
+      final int maxDimensions,
+      final int maxSamples) {
+    int dimensions = samples[0].getDimensions();
+    boolean[] used = new boolean[dimensions];
+    if (maxDimensions <= 0 || maxDimensions >= dimensions) {
+      Arrays.fill(used, true);
+      return used;
+    }
+
+    int step = Math.max(1, (samples.length + maxSamples - 1) / Math.max(1, maxSamples));
+    final int coefficients = 8;
+
+    // a DFT keeps the transform size of its first time series
+    HashMap<Integer, DFT> dfts = new HashMap<>();
+
+    List<SFASupervised.Indices<Double>> best = new ArrayList<>(dimensions);
+    for (int dim = 0; dim < dimensions; dim++) {
+      HashMap<Double, ArrayList<double[]>> classes = new HashMap<>();
+      int count = 0;
+      for (int i = 0; i < samples.length; i += step) {
+        TimeSeries ts = samples[i].timeSeries[dim];
+        double[] features = new double[2 + coefficients];
+        features[0] = ts.calculateMean();
+        features[1] = ts.calculateStddev();
+        DFT dft = dfts.get(ts.getLength());
+        if (dft == null) {
+          dft = new DFT();
+          dfts.put(ts.getLength(), dft);
+        }
+        double[] dftValues = dft.transform(ts, coefficients).getData();
+        System.arraycopy(dftValues, 0, features, 2, Math.min(coefficients, dftValues.length));
+
+        Double label = samples[i].getLabel();
+        ArrayList<double[]> allTs = classes.get(label);
+        if (allTs == null) {
+          allTs = new ArrayList<>();
+          classes.put(label, allTs);
+        }
+        allTs.add(features);
+        count++;
+      }
+
+      double[] f = SFASupervised.getFoneway(2 + coefficients, classes, count, classes.size());
+      double maxFValue = 0;
+      for (double value : f) {
+        if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+          maxFValue = Math.max(maxFValue, value);
+        }
+      }
+      best.add(new SFASupervised.Indices<>(dim, maxFValue));
+    }
+
+    // sort by largest f-value
+    Collections.sort(best);
+    for (int i = 0; i < maxDimensions; i++) {
+      used[best.get(i).index] = true;
+    }
+    return used;
+  }
+
+  /**
+   * Packs a feature into a long: a unigram has word2 = 0, a bigram holds the preceding
+   * word in word and the current word in word2.
+   *
+   * @param w     the index of the window length
+   * @param dim   the dimension
+   * @param word  the (first) SFA word
+   * @param word2 the second SFA word of a bigram, or 0
+   * @return the packed feature
+   */
+  public long createWord(int w, int dim, int word, int word2) {
+    // words of 32 bits must not be sign extended
+    return ((((long) dim << this.windowBits | w) << this.wordBits | (word & 0xFFFFFFFFL)) << this.wordBits)
+        | (word2 & 0xFFFFFFFFL);
+  }
+
+  /**
+   * The number of bits to represent the values 0 to n-1.
+   */
+  private static int getBits(int n) {
+    return n > 1 ? 32 - Integer.numberOfLeadingZeros(n - 1) : 0;
+  }
+
+  /**
+   * Unpacks a feature created by createWord, for diagnostics.
+   */
+  public MuseWord decode(long key) {
+    long wordMask = (1L << this.wordBits) - 1;
+    int shift = 2 * this.wordBits;
+    // Java shifts a long by the distance modulo 64: no bits are left for the dimension
+    int dimShift = shift + this.windowBits;
+    return new MuseWord(
+        shift < 64 ? (int) ((key >>> shift) & ((1L << this.windowBits) - 1)) : 0,
+        dimShift < 64 ? (int) (key >>> dimShift) : 0,
+        (int) ((key >>> this.wordBits) & wordMask),
+        (int) (key & wordMask));
   }
 
+  /**
+   * A decoded feature.
+   */
   public static class MuseWord {
     int w = 0;
     int dim = 0;
@@ -180,6 +348,11 @@ public class MUSE {
       result = 31 * result + Integer.hashCode(dim);
       return result;
     }
+
+    @Override
+    public String toString() {
+      return "w=" + w + " dim=" + dim + " word=" + word + " word2=" + word2;
+    }
   }
 
 
@@ -244,6 +417,11 @@ public class MUSE {
     final byte usedBits = (byte) Classifier.Words.binlog(this.alphabetSize);
     final int mask = (1 << (usedBits * wordLength)) - 1;
 
+    if (this.windowBits + 2 * this.wordBits + getBits(dimensionality) > 64) {
+      throw new IllegalArgumentException("Too many dimensions or too long words to pack MUSE features: "
+          + dimensionality + " dimensions, " + this.wordBits + " bits per word");
+    }
+
     // iterate all samples and create a muse model for each
     for (int i = 0, j = 0; i < samples.length; i++, j += dimensionality) {
       BagOfBigrams bop = new BagOfBigrams(100, samples[i].getLabel());
@@ -252,18 +430,16 @@ public class MUSE {
       if (this.windowLengths[w] >= wordLength) {
         for (int dim = 0; dim < dimensionality; dim++) {
           for (int offset = 0; offset < wordsForWindowLength[j + dim].length; offset++) {
-            MuseWord word = new MuseWord(w, dim, wordsForWindowLength[j + dim][offset] & mask, 0);
-            //int dict = this.dict.getWord(word);
+            long word = createWord(w, dim, wordsForWindowLength[j + dim][offset] & mask, 0);
             bop.bob.putOrAdd(word, 1, 1);
 
             // add bigrams
             if (this.windowLengths[this.windowLengths.length-1] < 200 // avoid for too large datasets
                 && MUSEClassifier.BIGRAMS
                 && (offset - this.windowLengths[w] >= 0)) {
-              MuseWord bigram = new MuseWord(w, dim,
+              long bigram = createWord(w, dim,
                   (wordsForWindowLength[j + dim][offset - this.windowLengths[w]] & mask),
                   wordsForWindowLength[j + dim][offset] & mask);
-              //int newWord = this.dict.getWord(bigram);
               bop.bob.putOrAdd(bigram, 1, 1);
             }
           }
@@ -275,22 +451,24 @@ public class MUSE {
   }
 
   /**
+   * Sets the counts of all features to 0, that fail the chi-squared test, and returns
+   * the remaining features in ascending order.
    * Implementation based on:
    * https://github.com/scikit-learn/scikit-learn/blob/c957249/sklearn/feature_selection/univariate_selection.py#L170
    */
-  public void trainChiSquared(final BagOfBigrams[] bob, double chi_limit) {
+  public long[] trainChiSquared(final BagOfBigrams[] bob, double chi_limit) {
     // Chi^2 Test
-    ObjectIntHashMap<MuseWord> featureCount = new ObjectIntHashMap<>(bob[0].bob.size());
+    LongIntHashMap featureCount = new LongIntHashMap(bob[0].bob.size());
     LongDoubleHashMap classProb = new LongDoubleHashMap(10);
-    LongObjectHashMap<ObjectIntHashMap<MuseWord>> observed = new LongObjectHashMap<>(bob[0].bob.size());
+    LongObjectHashMap<LongIntHashMap> observed = new LongObjectHashMap<>(bob[0].bob.size());
 
     // count number of samples with this word
     for (BagOfBigrams bagOfPattern : bob) {
       long label = bagOfPattern.label.longValue();
       if (!observed.containsKey(label)) {
-        observed.put(label, new ObjectIntHashMap<>());
+        observed.put(label, new LongIntHashMap());
       }
-      for (ObjectIntCursor<MuseWord> word : bagOfPattern.bob) {
+      for (LongIntCursor word : bagOfPattern.bob) {
         if (word.value > 0) {
           featureCount.putOrAdd(word.key, 1, 1);
           observed.get(label).putOrAdd(word.key, 1, 1);
@@ -305,12 +483,12 @@ public class MUSE {
     }
 
     // chi-squared: observed minus expected occurrence
-    ObjectHashSet<MuseWord> chiSquare = new ObjectHashSet<>(featureCount.size());
+    LongHashSet chiSquare = new LongHashSet(featureCount.size());
     for (LongDoubleCursor classLabel : classProb) {
       classLabel.value /= (double) bob.length;
       if (observed.get(classLabel.key) != null) {
-        ObjectIntHashMap<MuseWord> observe = observed.get(classLabel.key);
-        for (ObjectIntCursor<MuseWord> feature : featureCount) {
+        LongIntHashMap observe = observed.get(classLabel.key);
+        for (LongIntCursor feature : featureCount) {
           double expected = classLabel.value * feature.value;
           double chi = observe.get(feature.key) - expected;
           double newChi = chi * chi / expected;
@@ -324,36 +502,38 @@ public class MUSE {
 
     // best elements above limit
     for (int j = 0; j < bob.length; j++) {
-      for (ObjectIntCursor<MuseWord> cursor : bob[j].bob) {
+      for (LongIntCursor cursor : bob[j].bob) {
         if (!chiSquare.contains(cursor.key)) {
           bob[j].bob.values[cursor.index] = 0;
         }
       }
     }
+
+    long[] words = chiSquare.toArray();
+    Arrays.sort(words);
+    return words;
   }
 
   /**
-   * A dictionary that maps each SFA word to an integer.
+   * A dictionary that maps each packed SFA word to an integer.
    * <p>
    * Condenses the SFA word space.
    */
   public static class Dictionary {
-    public ObjectIntHashMap<MuseWord> dictChi;
-    public ArrayList<MuseWord> inverseDict; /* map IDs back to words */
+    public LongIntHashMap dictChi;
+    public LongArrayList inverseDict; /* map IDs back to words */
 
     public Dictionary() {
-      this.dictChi = new ObjectIntHashMap<MuseWord>();
-      this.inverseDict = new ArrayList<>();
-      this.inverseDict.add(new MUSE.MuseWord(0, 0, 0, 0)); // add dummy
+      reset();
     }
 
     public void reset() {
-      this.dictChi = new ObjectIntHashMap<MuseWord>();
-      this.inverseDict = new ArrayList<>();
-      this.inverseDict.add(new MUSE.MuseWord(0, 0, 0, 0)); // add dummy
+      this.dictChi = new LongIntHashMap();
+      this.inverseDict = new LongArrayList();
+      this.inverseDict.add(0L); // add dummy
     }
 
-    public int getWordChi(MuseWord word) {
+    public int getWordChi(long word) {
       int index = 0;
       if ((index = this.dictChi.indexOf(word)) > -1) {
         return this.dictChi.indexGet(index);
@@ -369,11 +549,21 @@ public class MUSE {
       return this.dictChi.size();
     }
 
+    /**
+     * Adds the features to the dictionary in the given order, i.e. merges a partial
+     * dictionary as returned by trainChiSquared.
+     */
+    public void addWords(long[] words) {
+      for (long word : words) {
+        getWordChi(word);
+      }
+    }
+
     public void filterChiSquared(final BagOfBigrams[] bagOfPatterns) {
       for (int j = 0; j < bagOfPatterns.length; j++) {
-        ObjectIntHashMap<MuseWord> oldMap = bagOfPatterns[j].bob;
-        bagOfPatterns[j].bob = new ObjectIntHashMap<MuseWord>();
-        for (ObjectIntCursor<MuseWord> word : oldMap) {
+        LongIntHashMap oldMap = bagOfPatterns[j].bob;
+        bagOfPatterns[j].bob = new LongIntHashMap();
+        for (LongIntCursor word : oldMap) {
           if (this.dictChi.containsKey(word.key) && word.value > 0) {
             bagOfPatterns[j].bob.put(word.key, word.value);
           }
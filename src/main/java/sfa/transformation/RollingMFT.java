@@ -0,0 +1,152 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.transformation;
+
+import com.carrotsearch.hppc.IntObjectHashMap;
+import org.jtransforms.fft.DoubleFFT_1D;
+
+import java.util.Arrays;
+
+/**
+ * The Momentary Fourier Transform of the most recent window of a growing time series.
+ * <p>
+ * Whereas the MFT transforms all sliding windows of a complete time series at once, the
+ * rolling MFT is advanced by one window for each new value of a stream, in constant time
+ * for the number of Fourier values kept. The Fourier values and the mean and standard
+ * deviation of the window are not normalized, and follow the packed layout of
+ * MFT.transformWindowing, i.e. the DC coefficient is found at offset 0.
+ */
+public class RollingMFT {
+
+  // the FFT of each window length
+  private static final IntObjectHashMap<DoubleFFT_1D> FFTS = new IntObjectHashMap<>();
+
+  private final int windowSize;
+  private final double[] phis;
+  private final double[] mftData;
+
+  // rolling sums of the current window
+  private double sum = 0;
+  private double squareSum = 0;
+
+  // the end (exclusive) of the current window
+  private int end = -1;
+
+  /**
+   * @param windowSize   the window length
+   * @param coefficients the number of Fourier values to keep, including the DC coefficient
+   */
+  public RollingMFT(int windowSize, int coefficients) {
+    this.windowSize = windowSize;
+
+    int wordLength = Math.min(windowSize, coefficients);
+    wordLength += wordLength % 2; // make it even
+    this.phis = new double[wordLength];
+    this.mftData = new double[wordLength];
+
+    for (int u = 0; u < this.phis.length; u += 2) {
+      double uHalve = -u / 2;
+      this.phis[u] = Math.cos(2 * Math.PI * uHalve / windowSize);
+      this.phis[u + 1] = -Math.sin(2 * Math.PI * uHalve / windowSize);
+    }
+  }
+
+  /**
+   * Moves the window to end at data[end - 1]. If the window moved by a single value, the
+   * Fourier values are updated using the MFT, otherwise they are computed from scratch.
+   *
+   * @param data the values of the time series, of which at least end are set
+   * @param end  the end (exclusive) of the window, at least the window length
+   */
+  public void update(double[] data, int end) {
+    if (end < this.windowSize) {
+      throw new IllegalArgumentException("The window of length " + this.windowSize + " does not fit " + end + " values");
+    }
+
+    int t = end - this.windowSize;
+    if (end == this.end + 1) {
+      slide(data[end - 1], data[t - 1]);
+    } else {
+      reset(data, t);
+    }
+    this.end = end;
+  }
+
+  /**
+   * Moves the window by a single value using the MFT.
+   *
+   * @param add    the value entering the window
+   * @param remove the value leaving the window
+   */
+  public void slide(double add, double remove) {
+    for (int k = 0; k < this.mftData.length; k += 2) {
+      double real1 = this.mftData[k] + add - remove;
+      double imag1 = this.mftData[k + 1];
+
+      this.mftData[k] = real1 * this.phis[k] - imag1 * this.phis[k + 1];
+      this.mftData[k + 1] = real1 * this.phis[k + 1] + this.phis[k] * imag1;
+    }
+    this.sum += add - remove;
+    this.squareSum += add * add - remove * remove;
+  }
+
+  /**
+   * Computes the Fourier values of the window starting at data[from] from scratch, the
+   * same as MFT.transformWindowing does for the first window.
+   *
+   * @param data the values of the time series
+   * @param from the start of the window
+   */
+  public void reset(double[] data, int from) {
+    double[] dft = new double[this.windowSize];
+    System.arraycopy(data, from, dft, 0, this.windowSize);
+    getFFT(this.windowSize).realForward(dft);
+    if (this.windowSize > 1) {
+      dft[1] = 0; // DC-coefficient imag part
+    }
+
+    // if windowSize > mftData.length, the remaining data should be 0 now.
+    Arrays.fill(this.mftData, 0);
+    System.arraycopy(dft, 0, this.mftData, 0, Math.min(this.mftData.length, dft.length));
+
+    this.sum = 0;
+    this.squareSum = 0;
+    for (int i = from; i < from + this.windowSize; i++) {
+      this.sum += data[i];
+      this.squareSum += data[i] * data[i];
+    }
+  }
+
+  /**
+   * The FFT of a window length, shared by all rolling MFTs and concurrent threads.
+   */
+  private static synchronized DoubleFFT_1D getFFT(int windowSize) {
+    DoubleFFT_1D fft = FFTS.get(windowSize);
+    if (fft == null) {
+      fft = new DoubleFFT_1D(windowSize);
+      FFTS.put(windowSize, fft);
+    }
+    return fft;
+  }
+
+  /**
+   * The Fourier values of the current window. The array is reused by the next update.
+   */
+  public double[] getCoefficients() {
+    return this.mftData;
+  }
+
+  public double getMean() {
+    return this.sum / this.windowSize;
+  }
+
+  public double getStddev() {
+    double mean = getMean();
+    double buf = this.squareSum / this.windowSize - mean * mean;
+    return buf > 0 ? Math.sqrt(buf) : 0;
+  }
+
+  public int getWindowSize() {
+    return this.windowSize;
+  }
+}
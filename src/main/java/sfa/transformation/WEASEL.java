@@ -4,9 +4,11 @@ package sfa.transformation;
 
 import com.carrotsearch.hppc.*;
 import com.carrotsearch.hppc.cursors.*;
+import com.carrotsearch.hppc.predicates.LongPredicate;
 import org.apache.commons.math3.distribution.ChiSquaredDistribution;
 import org.apache.commons.math3.distribution.FDistribution;
 import sfa.classification.Classifier.Words;
+import sfa.classification.ExecutionContext;
 import sfa.classification.ParallelFor;
 import sfa.classification.WEASELClassifier;
 import sfa.timeseries.TimeSeries;
@@ -23,6 +25,12 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class WEASEL {
 
   public static int WORD_LIMIT = 10000;
+
+  // marks a hashed bigram, see hashBigram
+  public final static long HASHED_BIGRAM = 1L << 33;
+
+  // upper limit for the number of hash bits, such that all buckets can be indexed by an int
+  public final static int MAX_HASH_BITS = 29;
   public int alphabetSize;
   public int maxF;
 
@@ -32,18 +40,14 @@ public class WEASEL {
   public SFA[] signature;
   public Dictionary dict;
 
-  public final static int BLOCKS;
+  // number of bits of the hashed feature space, 0 disables feature hashing
+  public int hashBits = 0;
 
-  static {
-    Runtime runtime = Runtime.getRuntime();
-    if (runtime.availableProcessors() <= 4) {
-      BLOCKS = 8;
-    } else {
-      BLOCKS = runtime.availableProcessors();
-    }
+  // the threads for the parallel work, or null for the default context
+  private transient ExecutionContext context;
 
-    //    BLOCKS = 1; // for testing purposes
-  }
+  // number of samples transformed by one task
+  public static int SAMPLES_PER_TASK = 8;
   public WEASEL(){}
 
   /**
@@ -60,12 +64,34 @@ public class WEASEL {
   public WEASEL(
       int maxF, int maxS,
       int[] windowLengths, boolean normMean, boolean lowerBounding) {
+    this(maxF, maxS, windowLengths, normMean, lowerBounding, 0);
+  }
+
+  /**
+   * Create a WEASEL model using a hashed feature space.
+   *
+   * @param maxF          Length of the SFA words
+   * @param maxS          alphabet size
+   * @param windowLengths the set of window lengths to use for extracting SFA words from
+   *                      time series.
+   * @param normMean      set to true, if mean should be set to 0 for a window
+   * @param lowerBounding set to true, if the Fourier transform should be normed (typically
+   *                      used to lower bound / mimic Euclidean distance).
+   * @param hashBits      unigrams and bigrams are each hashed into 2^hashBits buckets. Bounds
+   *                      the memory of the bags and the dictionary at the cost of collisions.
+   *                      Set to 0 to use an exact dictionary.
+   */
+  public WEASEL(
+      int maxF, int maxS,
+      int[] windowLengths, boolean normMean, boolean lowerBounding,
+      int hashBits) {
     this.maxF = maxF;
     this.alphabetSize = maxS;
     this.windowLengths = windowLengths;
     this.normMean = normMean;
     this.lowerBounding = lowerBounding;
-    this.dict = new Dictionary();
+    this.hashBits = hashBits;
+    this.dict = new Dictionary(hashBits);
     this.signature = new SFA[windowLengths.length];
   }
 
@@ -83,29 +109,66 @@ public class WEASEL {
   }
 
   /**
-   * Create SFA words and bigrams for all samples
+   * The execution context of the parallel word extraction.
+   */
+  public ExecutionContext getExecutionContext() {
+    return this.context != null ? this.context : ExecutionContext.getDefault();
+  }
+
+  public void setExecutionContext(ExecutionContext context) {
+    this.context = context;
+  }
+
+  /**
+   * Create SFA words and bigrams for all samples. Each window length first fits its SFA
+   * quantization and then fans out over chunks of samples, such that idle threads balance
+   * cheap short and expensive long windows.
    *
    * @param samples
    * @return
    */
   public int[][][] createWords(final TimeSeries[] samples) {
     // create bag of words for each window queryLength
-    final int[][][] words = new int[this.windowLengths.length][samples.length][];
-    int processed = ParallelFor.withIndex(BLOCKS, new ParallelFor.Each() {
-      @Override
-      public void run(int id, AtomicInteger processed) {
-        for (int w = 0; w < WEASEL.this.windowLengths.length; w++) {
-          if (w % BLOCKS == id) {
-            words[w] = createWords(samples, w);
-            processed.incrementAndGet();
+    final int[][][] words = new int[this.windowLengths.length][][];
+    final List<WindowWords> tasks = new ArrayList<>(this.windowLengths.length);
+    for (int w = 0; w < this.windowLengths.length; w++) {
+      tasks.add(new WindowWords(samples, w, words));
+    }
+    getExecutionContext().invokeAll(tasks);
+    return words;
+  }
+
+  /**
+   * Fits the SFA quantization of one window length and creates the words of all samples
+   * in chunks of SAMPLES_PER_TASK samples.
+   */
+  private class WindowWords implements Runnable {
+    private final TimeSeries[] samples;
+    private final int index;
+    private final int[][][] words;
+
+    WindowWords(TimeSeries[] samples, int index, int[][][] words) {
+      this.samples = samples;
+      this.index = index;
+      this.words = words;
+    }
+
+    @Override
+    public void run() {
+      fitSignature(this.samples, this.index);
+      final int[][] words = new int[this.samples.length][];
+      int chunks = (this.samples.length + SAMPLES_PER_TASK - 1) / SAMPLES_PER_TASK;
+      getExecutionContext().withIndex(chunks, new ParallelFor.Each() {
+        @Override
+        public void run(int id, AtomicInteger processed) {
+          int to = Math.min(samples.length, (id + 1) * SAMPLES_PER_TASK);
+          for (int i = id * SAMPLES_PER_TASK; i < to; i++) {
+            words[i] = createWords(samples[i], index);
           }
         }
-     }
-    });
-    if (processed < WEASEL.this.windowLengths.length) {
-      System.err.println("Processed: " + processed + " < " + WEASEL.this.windowLengths.length + " windowlengths.");
+      });
+      this.words[this.index] = words;
     }
-    return words;
   }
 
   /**
@@ -115,25 +178,92 @@ public class WEASEL {
    * @return
    */
   public int[][] createWords(final TimeSeries[] samples, final int index) {
+    fitSignature(samples, index);
+
+    // create words
+    final int[][] words = new int[samples.length][];
+    for (int i = 0; i < samples.length; i++) {
+      words[i] = createWords(samples[i], index);
+    }
 
-    // SFA quantization
+    return words;
+  }
+
+  /**
+   * Fits the SFA quantization for window length index on the samples, if not yet trained.
+   */
+  private void fitSignature(final TimeSeries[] samples, final int index) {
     if (this.signature[index] == null) {
-      this.signature[index] = new SFASupervised();
-      this.signature[index].fitWindowing(
+      SFA sfa = new SFASupervised();
+      sfa.fitWindowing(
           samples, this.windowLengths[index], this.maxF, this.alphabetSize, this.normMean, this.lowerBounding);
+      this.signature[index] = sfa;
     }
+  }
 
-    // create words
-    final int[][] words = new int[samples.length][];
-    for (int i = 0; i < samples.length; i++) {
-      if (samples[i].getLength() >= this.windowLengths[index]) {
-        words[i] = this.signature[index].transformWindowingInt(samples[i], this.maxF);
-      } else {
-        words[i] = new int[]{};
+  /**
+   * Create SFA words for a single sample using the trained SFA quantization
+   *
+   * @param sample
+   * @param index the index of the window length
+   * @return
+   */
+  public int[] createWords(final TimeSeries sample, final int index) {
+    if (this.signature[index] == null) {
+      throw new RuntimeException("Please call createWords(samples, index) on the train samples first.");
+    }
+    if (sample.getLength() >= this.windowLengths[index]) {
+      return this.signature[index].transformWindowingInt(sample, this.maxF);
+    }
+    return new int[]{};
+  }
+
+  /**
+   * Accumulates the linear decision values of a single sample for one window length
+   * directly from its SFA words, i.e. without building a bag of patterns. Each uni- and
+   * bigram found in the dictionary adds its weights to the scores. The weights use
+   * the liblinear layout of nrW weights per feature index.
+   *
+   * @param words      the SFA words of the sample for window length index w
+   * @param w          index of used windowSize
+   * @param wordLength the SFA word length
+   * @param weights    the weights of the linear model
+   * @param nrW        the number of weights per feature
+   * @param scores     the decision values to add to
+   */
+  public void accumulateScores(
+      final int[] words,
+      final int w,
+      final int wordLength,
+      final double[] weights,
+      final int nrW,
+      final double[] scores) {
+    final byte usedBits = (byte) Words.binlog(this.alphabetSize);
+    final long mask = (1L << (usedBits * wordLength)) - 1L;
+    int highestBit = Words.binlog(Integer.highestOneBit(WEASELClassifier.MAX_WINDOW_LENGTH))+1;
+
+    for (int offset = 0; offset < words.length; offset++) {
+      long word = (words[offset] & mask) << highestBit | (long) w;
+      addWeights(this.dict.findWordIndex(hashUnigram(word)), weights, nrW, scores);
+
+      // add 2 grams
+      if (offset - this.windowLengths[w] >= 0) {
+        long prevWord = (words[offset - this.windowLengths[w]] & mask);
+        if (prevWord != 0) {
+          long newWord = (prevWord << 32 | word);
+          addWeights(this.dict.findWordIndex(hashBigram(newWord)), weights, nrW, scores);
+        }
       }
     }
+  }
 
-    return words;
+  private static void addWeights(int index, double[] weights, int nrW, double[] scores) {
+    int offset = (index - 1) * nrW;
+    if (index > 0 && offset + nrW <= weights.length) {
+      for (int c = 0; c < nrW; c++) {
+        scores[c] += weights[offset + c];
+      }
+    }
   }
 
   /**
@@ -158,14 +288,14 @@ public class WEASEL {
       // create subsequences
       for (int offset = 0; offset < wordsForWindowLength[j].length; offset++) {
         long word = (wordsForWindowLength[j][offset] & mask) << highestBit | (long) w;
-        bagOfPatterns[j].bob.putOrAdd(word, 1, 1);
+        bagOfPatterns[j].bob.putOrAdd(hashUnigram(word), 1, 1);
 
         // add 2 grams
         if (offset - this.windowLengths[w] >= 0) {
           long prevWord = (wordsForWindowLength[j][offset - this.windowLengths[w]] & mask);
           if (prevWord != 0) {
             long newWord = (prevWord << 32 | word);
-            bagOfPatterns[j].bob.putOrAdd(newWord, 1, 1);
+            bagOfPatterns[j].bob.putOrAdd(hashBigram(newWord), 1, 1);
           }
         }
       }
@@ -197,14 +327,14 @@ public class WEASEL {
       for (int w = 0; w < this.windowLengths.length; w++) {
         for (int offset = 0; offset < words[w][j].length; offset++) {
           long word = (words[w][j][offset] & mask) << highestBit | (long) w;
-          bagOfPatterns[j].bob.putOrAdd(word, 1, 1);
+          bagOfPatterns[j].bob.putOrAdd(hashUnigram(word), 1, 1);
 
           // add 2 grams
           if (offset - this.windowLengths[w] >= 0) {
             long prevWord = (words[w][j][offset - this.windowLengths[w]] & mask);
             if (prevWord != 0) {
               long newWord = (prevWord << 32 | word);
-              bagOfPatterns[j].bob.putOrAdd(newWord, 1, 1);
+              bagOfPatterns[j].bob.putOrAdd(hashBigram(newWord), 1, 1);
             }
           }
         }
@@ -214,128 +344,201 @@ public class WEASEL {
     return bagOfPatterns;
   }
 
-  public LongHashSet trainChiSquared(final BagOfBigrams[] bob, double chi_limit) {
-    // Chi2 Test
-    LongIntHashMap featureCount = new LongIntHashMap(bob[0].bob.size());
-    DoubleIntHashMap classProb = new DoubleIntHashMap(10);
-    DoubleObjectHashMap<LongIntHashMap> observed = new DoubleObjectHashMap<>();
+  /**
+   * Maps a unigram to its bucket in the hashed feature space. Hashed unigrams
+   * stay below 2^32.
+   */
+  protected long hashUnigram(long word) {
+    return hashUnigram(word, this.hashBits);
+  }
 
-    // count number of samples with this word
+  public static long hashUnigram(long word, int hashBits) {
+    if (hashBits == 0) {
+      return word;
+    }
+    return BitMixer.mix64(word) & ((1L << hashBits) - 1L);
+  }
+
+  /**
+   * Maps a bigram to its bucket in the hashed feature space. Hashed bigrams
+   * stay above 2^32, as the chi-squared test tells uni- and bigrams apart by value.
+   */
+  protected long hashBigram(long word) {
+    return hashBigram(word, this.hashBits);
+  }
+
+  public static long hashBigram(long word, int hashBits) {
+    if (hashBits == 0) {
+      return word;
+    }
+    return HASHED_BIGRAM | (BitMixer.mix64(word) & ((1L << hashBits) - 1L));
+  }
+
+  /**
+   * Chi-squared feature selection. Keeps those features, whose chi-squared value exceeds
+   * chi_limit for at least one class, and at most WORD_LIMIT uni- and bigrams each (the
+   * ones with the largest chi-squared values). Unselected features are removed from the
+   * bags in place.
+   */
+  public LongHashSet trainChiSquared(final BagOfBigrams[] bob, double chi_limit) {
+    // class index and samples per class
+    LongIntHashMap classIndex = new LongIntHashMap(10);
+    IntArrayList classProb = new IntArrayList(10);
     for (BagOfBigrams bagOfPattern : bob) {
       long label = bagOfPattern.label.longValue();
-      int index = -1;
-      LongIntHashMap obs = null;
-      if ((index = observed.indexOf(label)) > -1) {
-        obs = observed.indexGet(index);
+      int index = classIndex.indexOf(label);
+      if (index > -1) {
+        int c = classIndex.indexGet(index);
+        classProb.set(c, classProb.get(c) + 1);
       } else {
-        obs = new LongIntHashMap();
-        observed.put(label, obs);
+        classIndex.put(label, classProb.size());
+        classProb.add(1);
       }
+    }
+    final int nClasses = classProb.size();
 
+    // count number of samples with this word per class: one row of counts per feature
+    LongIntHashMap featureIndex = new LongIntHashMap(bob[0].bob.size());
+    int[] observed = new int[Math.max(1, bob[0].bob.size()) * nClasses];
+    for (BagOfBigrams bagOfPattern : bob) {
+      int c = classIndex.get(bagOfPattern.label.longValue());
       for (LongIntCursor word : bagOfPattern.bob) {
         if (word.value > 0) {
-          featureCount.putOrAdd(word.key, 1,1); //word.value, word.value);
-
-          // count observations per class for this feature
-          obs.putOrAdd(word.key, 1,1); //word.value, word.value);
+          int row;
+          int index = featureIndex.indexOf(word.key);
+          if (index > -1) {
+            row = featureIndex.indexGet(index);
+          } else {
+            row = featureIndex.size() * nClasses;
+            featureIndex.indexInsert(index, word.key, row);
+            if (row + nClasses > observed.length) {
+              observed = Arrays.copyOf(observed, Math.max(row + nClasses, observed.length * 2));
+            }
+          }
+          observed[row + c]++;
         }
       }
     }
 
-    // samples per class
-    for (BagOfBigrams bagOfPattern : bob) {
-      long label = bagOfPattern.label.longValue();
-      classProb.putOrAdd(label, 1, 1);
-    }
-
-    // p_value-squared: observed minus expected occurrence
-    //LongDoubleHashMap chiSquareSum = new LongDoubleHashMap(featureCount.size());
-
-    // chi-squared: observed minus expected occurrence
-    LongHashSet chiSquare = new LongHashSet(featureCount.size());
-    ArrayList<PValueKey> values = new ArrayList<PValueKey>(featureCount.size());
-
-    for (DoubleIntCursor prob : classProb) {
-      double p = ((double)prob.value) / bob.length;
-      LongIntHashMap obs = observed.get(prob.key);
+    // chi-squared: observed minus expected occurrence, scored in a single pass
+    TopFeatures unigrams = new TopFeatures(WORD_LIMIT);
+    TopFeatures bigrams = new TopFeatures(WORD_LIMIT);
+    for (LongIntCursor feature : featureIndex) {
+      int row = feature.value;
+      int featureCount = 0;
+      for (int c = 0; c < nClasses; c++) {
+        featureCount += observed[row + c];
+      }
 
-      for (LongIntCursor feature : featureCount) {
-        double expected = p * feature.value;
-        double chi = obs.get(feature.key) - expected;
+      double maxChi = -1;
+      for (int c = 0; c < nClasses; c++) {
+        double expected = ((double) classProb.get(c)) / bob.length * featureCount;
+        double chi = observed[row + c] - expected;
         double newChi = chi * chi / expected;
+        maxChi = Math.max(maxChi, newChi);
+      }
 
-        if (newChi >= chi_limit
-            && !chiSquare.contains(feature.key)
-           ) {
-          chiSquare.add(feature.key);
-          values.add(new PValueKey(newChi, feature.key));
+      if (maxChi >= chi_limit) {
+        // limit number of features per window size to avoid excessive features
+        if (feature.key > (1l << 32)) {
+          bigrams.add(feature.key, maxChi);
+        } else if (feature.key < (1l << 32)) {
+          unigrams.add(feature.key, maxChi);
         }
-        //if (newChi > 0) {
-        //  chiSquareSum.putOrAdd(feature.key, newChi, newChi);
-        //}
       }
     }
 
-//    for (LongDoubleCursor feature : chiSquareSum) {
-//      double newChi = feature.value;
-//      if (newChi >= chi_limit) {
-//        chiSquare.add(feature.key);
-//        values.add(new PValueKey(newChi, feature.key));
-//      }
-//    }
+    LongHashSet chiSquare = new LongHashSet(unigrams.size() + bigrams.size());
+    unigrams.addTo(chiSquare);
+    bigrams.addTo(chiSquare);
 
-    // limit number of features per window size to avoid excessive features
-    int limit = WORD_LIMIT;
-    if (values.size() > limit) {
-      // sort by p_value-squared value
-      Collections.sort(values, new Comparator<PValueKey>() {
-        @Override
-        public int compare(PValueKey o1, PValueKey o2) {
-          int comp = Double.compare(o2.pvalue, o1.pvalue);
-          if (comp != 0) { // tie breaker
-            return comp;
-          }
-          return Long.compare(o1.key, o2.key);
-        }
-      });
+    // remove values
+    final LongHashSet selected = chiSquare;
+    LongPredicate unselected = new LongPredicate() {
+      @Override
+      public boolean apply(long key) {
+        return !selected.contains(key);
+      }
+    };
+    for (int j = 0; j < bob.length; j++) {
+      bob[j].bob.removeAll(unselected);
+    }
 
-      chiSquare.clear();
+    return chiSquare;
+  }
 
-      // use 1000 unigrams and 1000 bigrams
-      int countUnigram = 0;
-      int countBigram = 0;
-      for (int i = 0; i < values.size(); i++) {
-        // bigram?
-        long val = values.get(i).key;
-        if (val > (1l << 32) && countBigram < limit) {
-          chiSquare.add(val);
-          countBigram++;
-        }
-        // unigram?
-        else if (val < (1l << 32) && countUnigram < limit){
-          chiSquare.add(val);
-          countUnigram++;
-        }
+  /**
+   * A bounded min-heap that keeps the features with the largest chi-squared values.
+   * On a tie, the feature with the smaller key is preferred.
+   */
+  static class TopFeatures {
+    private final int limit;
+    private final double[] values;
+    private final long[] keys;
+    private int size = 0;
+
+    public TopFeatures(int limit) {
+      this.limit = limit;
+      this.values = new double[Math.max(limit, 0)];
+      this.keys = new long[Math.max(limit, 0)];
+    }
 
-        if (countUnigram >= limit && countBigram >= limit) {
-          break;
+    public int size() {
+      return this.size;
+    }
+
+    public void add(long key, double value) {
+      if (this.size < this.limit) {
+        // sift up
+        int pos = this.size++;
+        while (pos > 0) {
+          int parent = (pos - 1) >>> 1;
+          if (!worse(key, value, this.keys[parent], this.values[parent])) {
+            break;
+          }
+          this.keys[pos] = this.keys[parent];
+          this.values[pos] = this.values[parent];
+          pos = parent;
         }
+        this.keys[pos] = key;
+        this.values[pos] = value;
+      } else if (this.limit > 0 && worse(this.keys[0], this.values[0], key, value)) {
+        // replace the worst feature and sift down
+        int pos = 0;
+        while (true) {
+          int child = 2 * pos + 1;
+          if (child >= this.size) {
+            break;
+          }
+          if (child + 1 < this.size
+              && worse(this.keys[child + 1], this.values[child + 1], this.keys[child], this.values[child])) {
+            child++;
+          }
+          if (!worse(this.keys[child], this.values[child], key, value)) {
+            break;
+          }
+          this.keys[pos] = this.keys[child];
+          this.values[pos] = this.values[child];
+          pos = child;
+        }
+        this.keys[pos] = key;
+        this.values[pos] = value;
       }
     }
 
-    // remove values
-    for (int j = 0; j < bob.length; j++) {
-      LongIntHashMap oldMap = bob[j].bob;
-      bob[j].bob = new LongIntHashMap();
-      for (LongIntCursor cursor : oldMap) {
-        if (chiSquare.contains(cursor.key)) {
-          bob[j].bob.put(cursor.key, cursor.value);
-        }
+    public void addTo(LongHashSet set) {
+      for (int i = 0; i < this.size; i++) {
+        set.add(this.keys[i]);
       }
-      oldMap.clear();
     }
 
-    return chiSquare;
+    private static boolean worse(long key1, double value1, long key2, double value2) {
+      int comp = Double.compare(value1, value2);
+      if (comp != 0) {
+        return comp < 0;
+      }
+      return key1 > key2; // tie breaker
+    }
   }
 
 
@@ -492,25 +695,54 @@ public class WEASEL {
   /**
    * A dictionary that maps each SFA word to an integer.
    * <p>
-   * Condenses the SFA word space.
+   * Condenses the SFA word space. If feature hashing is used, only the used buckets
+   * are stored and numbered consecutively, such that the liblinear feature space is
+   * bounded by the number of buckets that survived the feature selection.
    */
   public static class Dictionary {
     public LongIntHashMap dict; /* stores the ID of each word */
     public ArrayList<Long> inverseDict; /* map IDs back to words */
 
+    public int hashBits = 0; /* 0: no feature hashing */
+    public IntIntHashMap buckets; /* stores the ID of each bucket that survived the feature selection */
+
     public Dictionary() {
-      this.dict = new LongIntHashMap();
-      this.inverseDict = new ArrayList<>();
-      this.inverseDict.add(0l); // add dummy
+      this(0);
+    }
+
+    public Dictionary(int hashBits) {
+      if (hashBits < 0 || hashBits > MAX_HASH_BITS) {
+        throw new IllegalArgumentException("hashBits must be within 0 and " + MAX_HASH_BITS + ": " + hashBits);
+      }
+      this.hashBits = hashBits;
+      reset();
     }
 
     public void reset() {
-      this.dict = new LongIntHashMap();
-      this.inverseDict = new ArrayList<>(1);
-      this.inverseDict.add(0l); // add dummy
+      if (this.hashBits > 0) {
+        this.dict = null;
+        this.inverseDict = null;
+        this.buckets = new IntIntHashMap();
+      } else {
+        this.buckets = null;
+        this.dict = new LongIntHashMap();
+        this.inverseDict = new ArrayList<>(1);
+        this.inverseDict.add(0l); // add dummy
+      }
     }
 
     public int getWordIndex(long word) {
+      if (this.hashBits > 0) {
+        int bucket = getBucket(word);
+        int index = 0;
+        if ((index = this.buckets.indexOf(bucket)) > -1) {
+          return this.buckets.indexGet(index);
+        }
+        int newBucket = this.buckets.size() + 1;
+        this.buckets.put(bucket, newBucket);
+        return newBucket;
+      }
+
       int index = 0;
       if ((index = this.dict.indexOf(word)) > -1) {
         return this.dict.indexGet(index);
@@ -525,7 +757,39 @@ public class WEASEL {
       }
     }
 
+    /**
+     * The bucket of a hashed uni- or bigram: unigrams use the lower,
+     * bigrams the upper half of the 2^(hashBits+1) buckets.
+     */
+    protected int getBucket(long word) {
+      int bucket = (int) (word & ((1L << this.hashBits) - 1L));
+      return (word & HASHED_BIGRAM) != 0 ? bucket + (1 << this.hashBits) : bucket;
+    }
+
+    /**
+     * Returns the index of a word, or -1 if the word is not part of the dictionary.
+     * As opposed to getWordIndex, the dictionary is not altered.
+     */
+    public int findWordIndex(long word) {
+      if (this.hashBits > 0) {
+        int index = this.buckets.indexOf(getBucket(word));
+        return index > -1 ? this.buckets.indexGet(index) : -1;
+      }
+      int index = this.dict.indexOf(word);
+      return index > -1 ? this.dict.indexGet(index) : -1;
+    }
+
+    public boolean contains(long word) {
+      if (this.hashBits > 0) {
+        return this.buckets.containsKey(getBucket(word));
+      }
+      return this.dict.containsKey(word);
+    }
+
     public int size() {
+      if (this.hashBits > 0) {
+        return this.buckets.size();
+      }
       return this.dict.size();
     }
 
@@ -534,7 +798,7 @@ public class WEASEL {
         LongIntHashMap oldMap = bagOfPatterns[j].bob;
         bagOfPatterns[j].bob = new LongIntHashMap();
         for (LongIntCursor word : oldMap) {
-          if (this.dict.containsKey(word.key) && word.value > 0) {
+          if (contains(word.key) && word.value > 0) {
             bagOfPatterns[j].bob.put(word.key, word.value);
           }
         }
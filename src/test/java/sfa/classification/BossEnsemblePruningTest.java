@@ -0,0 +1,111 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sfa.classification.BOSSEnsembleClassifier.BOSSModel;
+import sfa.timeseries.TimeSeries;
+import sfa.timeseries.TimeSeriesLoader;
+import sfa.transformation.BOSS;
+import sfa.transformation.BOSS.BagOfPattern;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The BOSS ensemble releases models and stops the leave-one-out evaluation of word
+ * lengths early during training. Both must result in the same ensemble as evaluating
+ * all models in full and filtering them afterwards.
+ */
+@RunWith(JUnit4.class)
+public class BossEnsemblePruningTest {
+
+  @After
+  public void reset() {
+    BOSSEnsembleClassifier.maxEnsembleMemoryMB = 0;
+  }
+
+  @Test
+  public void testCBF() {
+    testPruning("CBF", "CBF_TRAIN");
+  }
+
+  @Test
+  public void testCoffee() {
+    testPruning("Coffee", "Coffee_TRAIN");
+  }
+
+  private void testPruning(String name, String trainFile) {
+    ClassLoader classLoader = BossEnsemblePruningTest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/univariate/" + name).getFile());
+    TimeSeries[] samples = TimeSeriesLoader.loadDataset(new File(dir, trainFile));
+
+    BOSSEnsembleClassifier boss = new BOSSEnsembleClassifier();
+    Integer[] windows = boss.getWindowsBetween(10, boss.getMax(samples, BOSSEnsembleClassifier.MAX_WINDOW_LENGTH));
+
+    for (boolean normMean : new boolean[]{true, false}) {
+      List<BOSSModel> models = new ArrayList<>();
+      int correctTraining = fitAllModels(boss, windows, normMean, samples, models);
+      Ensemble<BOSSModel> expected = boss.filterByFactor(models, correctTraining, BOSSEnsembleClassifier.factor);
+
+      BOSSEnsembleClassifier.maxEnsembleMemoryMB = 0;
+      assertEnsemble(expected, boss.fitEnsemble(windows, normMean, samples));
+
+      // a cap, that only keeps about half of the models
+      long memory = 0;
+      for (BOSSModel model : expected.model) {
+        memory += model.getBagMemory();
+      }
+      if (memory / 2 >= 1024 * 1024) {
+        BOSSEnsembleClassifier.maxEnsembleMemoryMB = (int) (memory / 2 / (1024 * 1024));
+        Ensemble<BOSSModel> capped = boss.limitMemory(expected, BOSSEnsembleClassifier.maxEnsembleMemoryMB * 1024L * 1024L);
+        Assert.assertTrue(capped.size() < expected.size());
+        assertEnsemble(capped, boss.fitEnsemble(windows, normMean, samples));
+      }
+    }
+  }
+
+  /**
+   * Evaluates all word lengths of all window lengths without stopping early, and keeps
+   * all models. Returns the best number of correct predictions.
+   */
+  private static int fitAllModels(
+      BOSSEnsembleClassifier boss, Integer[] windows, boolean normMean,
+      TimeSeries[] samples, List<BOSSModel> models) {
+    int correctTraining = 0;
+    for (int windowLength : windows) {
+      BOSSModel model = new BOSSModel(normMean, windowLength);
+      BOSS transform = new BOSS(BOSSEnsembleClassifier.maxF, BOSSEnsembleClassifier.maxS, windowLength, normMean);
+      int[][] words = transform.createWords(samples);
+      for (int f = BOSSEnsembleClassifier.minF; f <= BOSSEnsembleClassifier.maxF; f += 2) {
+        BagOfPattern[] bag = transform.createBagOfPattern(words, samples, f);
+        Classifier.Predictions p = boss.predict(bag, bag);
+        if (p.correct.get() > model.score.training) {
+          model.score.training = p.correct.get();
+          model.features = f;
+          model.bag = bag;
+        }
+      }
+      correctTraining = Math.max(correctTraining, model.score.training);
+      models.add(model);
+    }
+    return correctTraining;
+  }
+
+  private static void assertEnsemble(Ensemble<BOSSModel> expected, Ensemble<BOSSModel> ensemble) {
+    Assert.assertEquals(expected.size(), ensemble.size());
+    for (int i = 0; i < expected.size(); i++) {
+      BOSSModel e = expected.get(i);
+      BOSSModel m = ensemble.get(i);
+      Assert.assertEquals("window length of model " + i, e.windowLength, m.windowLength);
+      Assert.assertEquals("word length of model " + i, e.features, m.features);
+      Assert.assertEquals("score of model " + i, e.score.training, m.score.training);
+      Assert.assertEquals("bag memory of model " + i, e.getBagMemory(), m.getBagMemory());
+    }
+  }
+}
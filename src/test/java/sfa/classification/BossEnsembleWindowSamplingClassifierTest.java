@@ -0,0 +1,40 @@
+package sfa.classification;
+
+import org.junit.After;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BOSS Ensemble evaluating every 5th window length first and refining around the best ones,
+ * with the train bags of the ensemble capped to 1 MB.
+ */
+public class BossEnsembleWindowSamplingClassifierTest extends AbstractClassifierTest{
+    @Override
+    protected List<DataSet> getDataSets() {
+        List<DataSet> dataSets=new ArrayList<>();
+
+        //variable_length;BOSS Ensemble;0.893;0.964
+        dataSets.add(new DataSet("variable_length", 0.893, 0.964));
+        //Coffee;BOSS Ensemble;1.0;1.0
+        dataSets.add(new DataSet("Coffee", 1.0, 1.0));
+        //Beef;BOSS Ensemble;0.667;0.8
+        dataSets.add(new DataSet("Beef", 0.667, 0.8));
+        //CBF;BOSS Ensemble;1.0;0.999
+        dataSets.add(new DataSet("CBF", 1.0, 0.999));
+        return dataSets;
+    }
+
+    @Override
+    protected Classifier initClassifier() {
+        BOSSEnsembleClassifier.windowStep = 5;
+        BOSSEnsembleClassifier.maxEnsembleMemoryMB = 1;
+        return new BOSSEnsembleClassifier();
+    }
+
+    @After
+    public void resetWindowStep() {
+        BOSSEnsembleClassifier.windowStep = 1;
+        BOSSEnsembleClassifier.maxEnsembleMemoryMB = 0;
+    }
+}
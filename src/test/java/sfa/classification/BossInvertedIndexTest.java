@@ -0,0 +1,130 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import com.carrotsearch.hppc.IntIntHashMap;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sfa.classification.BOSSEnsembleClassifier.InvertedIndex;
+import sfa.transformation.BOSS.BagOfPattern;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the 1-NN of the inverted index of the BOSS ensemble to the linear scan
+ * over all train bags, including the order of ties.
+ */
+@RunWith(JUnit4.class)
+public class BossInvertedIndexTest {
+
+  @Test
+  public void testNearestNeighbor() {
+    Random random = new Random(1);
+    for (int run = 0; run < 20; run++) {
+      // few words and counts, such that many distances are tied
+      BagOfPattern[] train = randomBags(random, 100, 12, 3);
+      // duplicates with different labels, of which the first must win
+      for (int j = 50; j < 60; j++) {
+        train[j].words = train[j - 50].words.clone();
+        train[j].counts = train[j - 50].counts.clone();
+      }
+      BagOfPattern[] test = randomBags(random, 50, 12, 3);
+
+      InvertedIndex index = new InvertedIndex(train);
+      long[] delta = new long[index.size()];
+      int[] touched = new int[index.size()];
+      boolean[] seen = new boolean[index.size()];
+
+      // leave-one-out on the train bags
+      for (int i = 0; i < train.length; i++) {
+        Assert.assertEquals("Train bag " + i,
+            linearScan(train[i], train), index.nearestNeighbor(train[i], delta, touched, seen));
+      }
+      for (int i = 0; i < test.length; i++) {
+        Assert.assertEquals("Test bag " + i,
+            linearScan(test[i], train), index.nearestNeighbor(test[i], delta, touched, seen));
+      }
+
+      // the scratch space is cleared after each search
+      for (int j = 0; j < index.size(); j++) {
+        Assert.assertEquals(0, delta[j]);
+        Assert.assertFalse(seen[j]);
+      }
+    }
+  }
+
+  /**
+   * The 1-NN search over hash maps, as used before the inverted index.
+   */
+  private static Double linearScan(BagOfPattern test, BagOfPattern[] train) {
+    long minDistance = Integer.MAX_VALUE;
+    Double label = null;
+
+    // Distance if there is no matching word
+    long noMatchDistance = 0;
+    for (int k = 0; k < test.words.length; k++) {
+      noMatchDistance += (long) test.counts[k] * test.counts[k];
+    }
+
+    nnSearch:
+    for (int j = 0; j < train.length; j++) {
+      if (test != train[j]) {
+        IntIntHashMap bag = toMap(train[j]);
+        long distance = 0;
+        for (int k = 0; k < test.words.length; k++) {
+          long buf = test.counts[k] - bag.get(test.words[k]);
+          distance += buf * buf;
+
+          if (distance >= minDistance) {
+            continue nnSearch;
+          }
+        }
+
+        // update nearest neighbor
+        if (distance != noMatchDistance && distance < minDistance && distance > 0) {
+          minDistance = distance;
+          label = train[j].label;
+        }
+      }
+    }
+    return label;
+  }
+
+  private static IntIntHashMap toMap(BagOfPattern bag) {
+    IntIntHashMap map = new IntIntHashMap(bag.words.length);
+    for (int k = 0; k < bag.words.length; k++) {
+      map.put(bag.words[k], bag.counts[k]);
+    }
+    return map;
+  }
+
+  private static BagOfPattern[] randomBags(Random random, int size, int words, int maxCount) {
+    BagOfPattern[] bags = new BagOfPattern[size];
+    for (int j = 0; j < size; j++) {
+      int[] all = new int[words];
+      for (int w = 0; w < words; w++) {
+        all[w] = w * 7;
+      }
+      // a random subset of the words in ascending order
+      int n = random.nextInt(words / 2) + 1;
+      for (int w = 0; w < n; w++) {
+        int k = w + random.nextInt(words - w);
+        int tmp = all[w];
+        all[w] = all[k];
+        all[k] = tmp;
+      }
+      bags[j] = new BagOfPattern();
+      bags[j].label = (double) random.nextInt(4);
+      bags[j].words = Arrays.copyOf(all, n);
+      Arrays.sort(bags[j].words);
+      bags[j].counts = new int[n];
+      for (int k = 0; k < n; k++) {
+        bags[j].counts[k] = random.nextInt(maxCount) + 1;
+      }
+    }
+    return bags;
+  }
+}
@@ -0,0 +1,165 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import com.carrotsearch.hppc.IntFloatHashMap;
+import com.carrotsearch.hppc.ObjectObjectHashMap;
+import com.carrotsearch.hppc.cursors.IntFloatCursor;
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sfa.timeseries.TimeSeries;
+import sfa.timeseries.TimeSeriesLoader;
+import sfa.transformation.BOSS.BagOfPattern;
+import sfa.transformation.BOSSVS;
+
+import java.io.File;
+import java.util.Set;
+
+/**
+ * Scores bags of patterns by the tf-idf vectors of the classes of BOSS VS.
+ */
+@RunWith(JUnit4.class)
+public class BossVSTfIdfTest {
+
+  @After
+  public void reset() {
+    BOSSVSClassifier.normMagnitudes = false;
+  }
+
+  /**
+   * The compiled tf-idf vectors must give the same score for each class as the cosine
+   * similarity computed on the tf-idf maps of the classes.
+   */
+  @Test
+  public void testCompiledTfIdf() {
+    for (String name : new String[]{"Coffee", "Beef", "CBF"}) {
+      TimeSeries[] trainSamples = load(name, name + "_TRAIN");
+      TimeSeries[] testSamples = load(name, name + "_TEST");
+      Set<Double> uniqueLabels = Classifier.uniqueClassLabels(trainSamples);
+
+      for (int windowLength = 10; windowLength <= 110; windowLength += 50) {
+        for (boolean normMean : new boolean[]{true, false}) {
+          BOSSVS bossvs = new BOSSVS(BOSSVSClassifier.maxF, BOSSVSClassifier.maxS, windowLength, normMean);
+          int[][] words = bossvs.createWords(trainSamples);
+          int[][] wordsTest = bossvs.createWords(testSamples);
+
+          for (int f = BOSSVSClassifier.minF; f <= BOSSVSClassifier.maxF; f += 4) {
+            BagOfPattern[] bag = bossvs.createBagOfPattern(words, trainSamples, f);
+            BagOfPattern[] bagTest = bossvs.createBagOfPattern(wordsTest, testSamples, f);
+            ObjectObjectHashMap<Double, IntFloatHashMap> idf = bossvs.createTfIdf(bag, uniqueLabels);
+            BOSSVSClassifier.CompiledTfIdf compiled = new BOSSVSClassifier.CompiledTfIdf(idf);
+            Assert.assertEquals(idf.size(), compiled.size());
+
+            for (boolean normMagnitudes : new boolean[]{false, true}) {
+              BOSSVSClassifier.normMagnitudes = normMagnitudes;
+              String message = name + " window length " + windowLength + " normMean " + normMean
+                  + " f " + f + " normMagnitudes " + normMagnitudes;
+              double[] distances = new double[compiled.size()];
+
+              for (BagOfPattern testBag : bagTest) {
+                Double label = compiled.predict(testBag, distances);
+
+                Double expectedLabel = null;
+                double bestDistance = 0.0;
+                for (int c = 0; c < compiled.size(); c++) {
+                  IntFloatHashMap stat = idf.get(compiled.labels[c]);
+                  double distance = 0.0;
+                  for (int k = 0; k < testBag.words.length; k++) {
+                    distance += testBag.counts[k] * (stat.get(testBag.words[k]) + 1.0);
+                  }
+                  Assert.assertEquals(message, distance, distances[c], 1e-9 * distance);
+
+                  if (normMagnitudes) {
+                    distance /= Classifier.magnitude(stat.values());
+                  }
+                  if (distance > bestDistance) {
+                    bestDistance = distance;
+                    expectedLabel = compiled.labels[c];
+                  }
+                }
+                Assert.assertEquals(message, expectedLabel, label);
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The tf-idf of a fold, obtained by subtracting the word frequencies of the held out
+   * samples from those of all samples, must equal the tf-idf of the samples of the fold.
+   */
+  @Test
+  public void testFoldTfIdf() {
+    int folds = 10;
+    for (String name : new String[]{"Coffee", "Beef", "CBF"}) {
+      TimeSeries[] samples = load(name, name + "_TRAIN");
+      Set<Double> uniqueLabels = Classifier.uniqueClassLabels(samples);
+
+      for (int windowLength = 10; windowLength <= 110; windowLength += 50) {
+        BOSSVS bossvs = new BOSSVS(BOSSVSClassifier.maxF, BOSSVSClassifier.maxS, windowLength, true);
+        int[][] words = bossvs.createWords(samples);
+
+        for (int f = BOSSVSClassifier.minF; f <= BOSSVSClassifier.maxF; f += 4) {
+          BagOfPattern[] bag = bossvs.createBagOfPattern(words, samples, f);
+          ObjectObjectHashMap<Double, IntFloatHashMap> wordFrequencies =
+              bossvs.createWordFrequencies(bag, uniqueLabels);
+
+          for (int s = 0; s < folds; s++) {
+            int[] heldOut = getFold(samples.length, folds, s, true);
+            int[] fold = getFold(samples.length, folds, s, false);
+            ObjectObjectHashMap<Double, IntFloatHashMap> idf =
+                bossvs.createTfIdf(wordFrequencies, bag, heldOut, uniqueLabels);
+            ObjectObjectHashMap<Double, IntFloatHashMap> expected =
+                bossvs.createTfIdf(bag, fold, uniqueLabels);
+
+            String message = name + " window length " + windowLength + " f " + f + " fold " + s;
+            Assert.assertEquals(message, expected.size(), idf.size());
+            for (ObjectObjectCursor<Double, IntFloatHashMap> classEntry : expected) {
+              IntFloatHashMap stat = idf.get(classEntry.key);
+              Assert.assertNotNull(message, stat);
+              for (IntFloatCursor word : classEntry.value) {
+                Assert.assertEquals(message, word.value, stat.get(word.key), 1e-6);
+              }
+              // words left only in the held out samples have no weight
+              for (IntFloatCursor word : stat) {
+                Assert.assertEquals(message, classEntry.value.get(word.key), word.value, 1e-6);
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The indices of the samples held out in fold s, or of the remaining samples.
+   */
+  private static int[] getFold(int size, int folds, int s, boolean heldOut) {
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      if ((i % folds == s) == heldOut) {
+        count++;
+      }
+    }
+    int[] indices = new int[count];
+    count = 0;
+    for (int i = 0; i < size; i++) {
+      if ((i % folds == s) == heldOut) {
+        indices[count++] = i;
+      }
+    }
+    return indices;
+  }
+
+  static TimeSeries[] load(String name, String file) {
+    ClassLoader classLoader = BossVSTfIdfTest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/univariate/" + name).getFile());
+    return TimeSeriesLoader.loadDataset(new File(dir, file));
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs nested parallel loops and failing tasks on small thread budgets.
+ */
+@RunWith(JUnit4.class)
+public class ExecutionContextTest {
+
+  private final int threads = Classifier.threads;
+
+  @After
+  public void reset() {
+    Classifier.threads = this.threads;
+    ExecutionContext.setDefault(null);
+  }
+
+  @Test
+  public void testDefaultFollowsThreads() {
+    ExecutionContext.setDefault(null);
+    Classifier.threads = 2;
+    Assert.assertEquals(2, ExecutionContext.getDefault().getThreads());
+    Classifier.threads = 3;
+    Assert.assertEquals(3, ExecutionContext.getDefault().getThreads());
+
+    // a context set by the caller is kept
+    try (ExecutionContext context = new ExecutionContext(1)) {
+      ExecutionContext.setDefault(context);
+      Classifier.threads = 4;
+      Assert.assertSame(context, ExecutionContext.getDefault());
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testNestedLoops() {
+    try (ExecutionContext context = new ExecutionContext(1)) {
+      Assert.assertEquals(64, nestedLoops(context));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testCallerExecutor() {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try (ExecutionContext context = new ExecutionContext(executor, 2)) {
+      Assert.assertEquals(64, nestedLoops(context));
+    }
+    // the executor of the caller is not shut down by the context
+    Assert.assertFalse(executor.isShutdown());
+    executor.shutdown();
+  }
+
+  @Test(timeout = 10000)
+  public void testInvokeAllRethrows() {
+    final AtomicInteger count = new AtomicInteger(0);
+    List<Runnable> tasks = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      final int ii = i;
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          count.incrementAndGet();
+          if (ii == 5) {
+            throw new IllegalStateException("task " + ii);
+          }
+        }
+      });
+    }
+
+    try (ExecutionContext context = new ExecutionContext(2)) {
+      context.invokeAll(tasks);
+      Assert.fail("The failure of a task must be rethrown");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("task 5", e.getMessage());
+    }
+    // the other tasks still run
+    Assert.assertEquals(16, count.get());
+  }
+
+  private int nestedLoops(final ExecutionContext context) {
+    final AtomicInteger count = new AtomicInteger(0);
+    context.withIndex(context.getBlocks(), new ParallelFor.Each() {
+      @Override
+      public void run(int id, AtomicInteger processed) {
+        context.withIndex(context.getBlocks(), new ParallelFor.Each() {
+          @Override
+          public void run(int id, AtomicInteger processed) {
+            count.incrementAndGet();
+          }
+        });
+      }
+    });
+    return count.get();
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sfa.timeseries.MultiVariateTimeSeries;
+import sfa.timeseries.TimeSeries;
+import sfa.timeseries.TimeSeriesLoader;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compares the labels of multivariate TEASER streams, that consume the test samples one
+ * aligned sample of all dimensions at a time, to the labels of the batch prediction.
+ */
+@RunWith(JUnit4.class)
+public class MTEASERStreamTest {
+
+  @After
+  public void reset() {
+    MTEASERClassifier.S = 20.0;
+    Classifier.NORMALIZATION = new boolean[]{true, false};
+    TimeSeries.APPLY_Z_NORM = true;
+  }
+
+  @Test
+  public void testShapesRandom() throws IOException {
+    testStream("ShapesRandom", "ShapesRandom_TRAIN3", "ShapesRandom_TEST3", false);
+  }
+
+  @Test
+  public void testPenDigits() throws IOException {
+    testStream("PenDigits", "PenDigits_TRAIN3", "PenDigits_TEST3", false);
+  }
+
+  /**
+   * Streams z-normalized prefixes, which requires mean normalised MUSE models.
+   */
+  @Test
+  public void testShapesRandomZNorm() throws IOException {
+    Classifier.NORMALIZATION = new boolean[]{true};
+    testStream("ShapesRandom", "ShapesRandom_TRAIN3", "ShapesRandom_TEST3", true);
+  }
+
+  private void testStream(String name, String trainFile, String testFile, boolean zNorm) throws IOException {
+    ClassLoader classLoader = MTEASERStreamTest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/multivariate/" + name).getFile());
+    TimeSeries.APPLY_Z_NORM = false;
+    MultiVariateTimeSeries[] trainSamples = TimeSeriesLoader.loadMultivariateDatset(new File(dir, trainFile), true);
+    MultiVariateTimeSeries[] testSamples = TimeSeriesLoader.loadMultivariateDatset(new File(dir, testFile), true);
+
+    MTEASERClassifier teaser = new MTEASERClassifier();
+    MTEASERClassifier.S = 10; // faster processing
+    teaser.fit(trainSamples);
+
+    // z-normalized prefixes shift the DC coefficient of each window
+    boolean normMean = true;
+    for (int s = 0; s < teaser.model.slaveModels.length; s++) {
+      if (teaser.model.masterModels[s] != null) {
+        normMean &= teaser.model.slaveModels[s].muse.normMean;
+      }
+    }
+    TimeSeries.APPLY_Z_NORM = true;
+    try {
+      teaser.newStream(testSamples[0].getDimensions());
+      Assert.assertTrue(normMean);
+    } catch (IllegalStateException e) {
+      Assert.assertFalse(normMean);
+    }
+    TimeSeries.APPLY_Z_NORM = false;
+
+    if (zNorm) {
+      Assert.assertTrue(normMean);
+      // the MUSE classifiers of the offsets reset TimeSeries.APPLY_Z_NORM, once created
+      teaser.model.getSlaveClassifiers(teaser.getExecutionContext());
+      TimeSeries.APPLY_Z_NORM = true;
+    }
+
+    MTEASERClassifier.OffsetPrediction prediction = teaser.predict(testSamples, true, teaser.model.threshold);
+    for (int i = 0; i < testSamples.length; i++) {
+      int dimensions = testSamples[i].getDimensions();
+      MTEASERStream stream = teaser.newStream(dimensions);
+      double[] values = new double[dimensions];
+      for (int t = 0; t < testSamples[i].getLength() && !stream.isDecided(); t++) {
+        for (int dim = 0; dim < dimensions; dim++) {
+          values[dim] = testSamples[i].timeSeries[dim].getData()[t];
+        }
+        stream.update(values);
+      }
+      Assert.assertEquals("Streamed prediction of sample " + i + " differs", prediction.labels[i], stream.finish());
+      Assert.assertEquals("Streamed offset of sample " + i + " differs", prediction.offsets[i], stream.getOffset());
+    }
+  }
+}
@@ -0,0 +1,75 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sfa.timeseries.MultiVariateTimeSeries;
+import sfa.timeseries.TimeSeries;
+import sfa.timeseries.TimeSeriesLoader;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The bags of bigrams of MUSE are built on blocks of samples, one block per task. The
+ * dictionary and the predictions must not depend on the number of threads and blocks.
+ */
+@RunWith(JUnit4.class)
+public class MUSEParallelTest {
+
+  private final int threads = Classifier.threads;
+
+  @After
+  public void reset() {
+    Classifier.threads = this.threads;
+    ExecutionContext.setDefault(null);
+    TimeSeries.APPLY_Z_NORM = true;
+  }
+
+  @Test
+  public void testShapesRandom() throws IOException {
+    testDictionary("ShapesRandom");
+  }
+
+  @Test
+  public void testECG() throws IOException {
+    testDictionary("ECG");
+  }
+
+  private void testDictionary(String name) throws IOException {
+    ClassLoader classLoader = MUSEParallelTest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/multivariate/" + name).getFile());
+    TimeSeries.APPLY_Z_NORM = false;
+    MultiVariateTimeSeries[] trainSamples = TimeSeriesLoader.loadMultivariateDatset(new File(dir, name + "_TRAIN3"), true);
+    MultiVariateTimeSeries[] testSamples = TimeSeriesLoader.loadMultivariateDatset(new File(dir, name + "_TEST3"), true);
+
+    MUSEClassifier expected = null;
+    Double[] expectedLabels = null;
+
+    // 8, 8 and 12 blocks of samples
+    for (int threads : new int[]{1, 3, 12}) {
+      Classifier.threads = threads;
+      ExecutionContext.setDefault(null);
+
+      MUSEClassifier muse = new MUSEClassifier();
+      muse.fit(trainSamples);
+      Double[] labels = muse.predict(testSamples);
+
+      if (expected == null) {
+        expected = muse;
+        expectedLabels = labels;
+      } else {
+        String message = name + " threads " + threads;
+        Assert.assertEquals(message, expected.model.features, muse.model.features);
+        Assert.assertEquals(message, expected.model.score.training, muse.model.score.training);
+        Assert.assertArrayEquals(message,
+            expected.model.muse.dict.inverseDict.toArray(), muse.model.muse.dict.inverseDict.toArray());
+        Assert.assertArrayEquals(message, expectedLabels, labels);
+      }
+    }
+  }
+}
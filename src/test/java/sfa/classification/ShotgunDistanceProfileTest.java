@@ -0,0 +1,60 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sfa.classification.ShotgunClassifier.ShotgunModel;
+import sfa.timeseries.TimeSeries;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The models of all window lengths of a Shotgun ensemble share the cumulative sums of
+ * the train samples, and the transforms are only computed, if distance profiles are used.
+ */
+@RunWith(JUnit4.class)
+public class ShotgunDistanceProfileTest {
+
+  @After
+  public void reset() {
+    ShotgunClassifier.MIN_DISTANCE_PROFILE_WINDOW_LENGTH = Integer.MAX_VALUE;
+  }
+
+  @Test
+  public void testSharedProfile() throws IOException {
+    TimeSeries[] trainSamples = ShotgunPruningTest.load("Coffee", "Coffee_TRAIN");
+    TimeSeries[] testSamples = ShotgunPruningTest.load("Coffee", "Coffee_TEST");
+
+    ShotgunEnsembleClassifier shotgun = new ShotgunEnsembleClassifier();
+    shotgun.fit(trainSamples);
+    Double[] labels = shotgun.predict(testSamples);
+    assertShared(shotgun.model, false);
+
+    File file = File.createTempFile("shotgun", "class");
+    file.deleteOnExit();
+    shotgun.save(file);
+    ShotgunEnsembleClassifier loaded = Classifier.load(file);
+    Assert.assertArrayEquals(labels, loaded.predict(testSamples));
+    assertShared(loaded.model, false);
+
+    // the transforms are computed once the first window length uses distance profiles
+    ShotgunClassifier.MIN_DISTANCE_PROFILE_WINDOW_LENGTH = 0;
+    Assert.assertArrayEquals(labels, loaded.predict(testSamples));
+    assertShared(loaded.model, true);
+  }
+
+  private static void assertShared(Ensemble<ShotgunModel> ensemble, boolean prepared) {
+    Assert.assertTrue(ensemble.size() > 1);
+    DistanceProfile profile = ensemble.get(0).profile;
+    Assert.assertNotNull(profile);
+    Assert.assertEquals(prepared, profile.isPrepared());
+    for (int i = 1; i < ensemble.size(); i++) {
+      Assert.assertSame("profile of model " + i, profile, ensemble.get(i).profile);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sfa.classification.ShotgunClassifier.ShotgunModel;
+import sfa.timeseries.TimeSeries;
+import sfa.timeseries.TimeSeriesLoader;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * The 1-NN search of Shotgun skips train windows and train samples by lower bounds of
+ * their distances. It must find the same nearest neighbors at the same distances as the
+ * search without pruning.
+ */
+@RunWith(JUnit4.class)
+public class ShotgunPruningTest {
+
+  @After
+  public void reset() {
+    ShotgunClassifier.lowerBoundCoefficients = 4;
+    ShotgunClassifier.MIN_LOWER_BOUND_WINDOW_LENGTH = 50;
+  }
+
+  @Test
+  public void testCoffee() {
+    testLowerBounds("Coffee");
+  }
+
+  @Test
+  public void testCBF() {
+    testLowerBounds("CBF");
+  }
+
+  @Test
+  public void testBeef() {
+    testLowerBounds("Beef");
+  }
+
+  private void testLowerBounds(String name) {
+    TimeSeries[] trainSamples = load(name, name + "_TRAIN");
+    TimeSeries[] testSamples = Arrays.copyOf(load(name, name + "_TEST"), trainSamples.length);
+
+    ShotgunClassifier shotgun = new ShotgunClassifier();
+    int maxWindowLength = shotgun.getMax(trainSamples, ShotgunClassifier.MAX_WINDOW_LENGTH);
+    for (boolean normMean : new boolean[]{true, false}) {
+      for (int windowLength = 5; windowLength <= maxWindowLength; windowLength += 10) {
+        ShotgunModel model = new ShotgunModel(normMean, windowLength, trainSamples);
+        // the train samples themselves are classified leave-one-out
+        for (TimeSeries[] samples : new TimeSeries[][]{trainSamples, testSamples}) {
+          int[] neighbors = new int[samples.length];
+          double[] distances = new double[samples.length];
+          ShotgunClassifier.MIN_LOWER_BOUND_WINDOW_LENGTH = 0;
+          ShotgunClassifier.lowerBoundCoefficients = 8;
+          Double[] labels = shotgun.predict(model, samples, neighbors, distances);
+
+          int[] expectedNeighbors = new int[samples.length];
+          double[] expectedDistances = new double[samples.length];
+          ShotgunClassifier.lowerBoundCoefficients = 0;
+          Double[] expectedLabels = shotgun.predict(model, samples, expectedNeighbors, expectedDistances);
+
+          String message = name + " window length " + windowLength + " normMean " + normMean;
+          Assert.assertArrayEquals(message, expectedLabels, labels);
+          Assert.assertArrayEquals(message, expectedNeighbors, neighbors);
+          Assert.assertArrayEquals(message, expectedDistances, distances, 0.0);
+        }
+      }
+    }
+  }
+
+  /**
+   * The distance to the nearest neighbor of the previous window length bounds the 1-NN
+   * search of the next window length. It must neither change the labels of the models of
+   * the ensemble, nor the distances to their nearest neighbors.
+   */
+  @Test
+  public void testNeighbors() {
+    for (String name : new String[]{"Coffee", "CBF"}) {
+      TimeSeries[] trainSamples = load(name, name + "_TRAIN");
+      TimeSeries[] testSamples = load(name, name + "_TEST");
+      testSamples = Arrays.copyOf(testSamples, Math.min(testSamples.length, 100));
+
+      try (ExecutionContext context = new ExecutionContext(1)) {
+        ShotgunEnsembleClassifier shotgun = new ShotgunEnsembleClassifier();
+        shotgun.setExecutionContext(context);
+        ShotgunEnsembleClassifier unseeded = new ShotgunEnsembleClassifier() {
+          @Override
+          protected Double[] predict(ShotgunModel model, TimeSeries[] samples, int[] neighbors) {
+            return super.predict(model, samples, null, null);
+          }
+        };
+        unseeded.setExecutionContext(context);
+
+        for (boolean normMean : new boolean[]{true, false}) {
+          Ensemble<ShotgunModel> ensemble = shotgun.fitEnsemble(trainSamples, normMean, ShotgunEnsembleClassifier.factor);
+          Ensemble<ShotgunModel> expected = unseeded.fitEnsemble(trainSamples, normMean, ShotgunEnsembleClassifier.factor);
+          Assert.assertEquals(expected.size(), ensemble.size());
+          for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).windowLength, ensemble.get(i).windowLength);
+            Assert.assertEquals(expected.get(i).score.training, ensemble.get(i).score.training);
+          }
+          Assert.assertArrayEquals(unseeded.predict(ensemble, testSamples), shotgun.predict(ensemble, testSamples));
+
+          // the models in the order of the ensemble, seeded by the previous model
+          int[] neighbors = new int[testSamples.length];
+          Arrays.fill(neighbors, -1);
+          for (int i = 0; i < ensemble.size(); i++) {
+            ShotgunModel model = ensemble.get(i);
+            double[] distances = new double[testSamples.length];
+            Double[] labels = shotgun.predict(model, testSamples, neighbors, distances);
+            double[] expectedDistances = new double[testSamples.length];
+            Double[] expectedLabels = shotgun.predict(model, testSamples, null, expectedDistances);
+
+            String message = name + " window length " + model.windowLength + " normMean " + normMean;
+            Assert.assertArrayEquals(message, expectedLabels, labels);
+            Assert.assertArrayEquals(message, expectedDistances, distances, 0.0);
+          }
+        }
+      }
+    }
+  }
+
+  static TimeSeries[] load(String name, String file) {
+    ClassLoader classLoader = ShotgunPruningTest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/univariate/" + name).getFile());
+    return TimeSeriesLoader.loadDataset(new File(dir, file));
+  }
+}
@@ -0,0 +1,174 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import de.bwaldvogel.liblinear.SolverType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sfa.timeseries.MultiVariateTimeSeries;
+import sfa.timeseries.TimeSeries;
+import sfa.timeseries.TimeSeriesLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fits TEASER models on execution contexts of several threads, which train the offsets,
+ * the slave and the master models concurrently, and predicts with a single model from
+ * concurrent threads.
+ */
+@RunWith(JUnit4.class)
+public class TEASERParallelTest {
+
+  @After
+  public void reset() {
+    TEASERClassifier.S = 20.0;
+    MTEASERClassifier.S = 20.0;
+    WEASELClassifier.solverType = SolverType.L2R_LR_DUAL;
+    TimeSeries.APPLY_Z_NORM = true;
+  }
+
+  /**
+   * The models must not depend on the interleaving of the threads, neither for the primal
+   * solver used by TEASER, nor for a dual solver drawing from the random generator of
+   * liblinear.
+   */
+  @Test
+  public void testReproducibleFit() {
+    TimeSeries[] trainSamples = load("Coffee", "Coffee_TRAIN");
+    TimeSeries[] testSamples = load("Coffee", "Coffee_TEST");
+
+    for (SolverType solverType : new SolverType[]{SolverType.L2R_LR, SolverType.L2R_LR_DUAL}) {
+      TEASERClassifier.OffsetPrediction sequential = fitAndPredict(trainSamples, testSamples, solverType, 1);
+      for (int run = 0; run < 2; run++) {
+        TEASERClassifier.OffsetPrediction parallel = fitAndPredict(trainSamples, testSamples, solverType, 4);
+        Assert.assertArrayEquals(solverType + ": labels differ", sequential.labels, parallel.labels);
+        Assert.assertArrayEquals(solverType + ": offsets differ", sequential.offsets, parallel.offsets);
+      }
+    }
+  }
+
+  @Test
+  public void testReproducibleFitMultivariate() throws IOException {
+    ClassLoader classLoader = TEASERParallelTest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/multivariate/ShapesRandom").getFile());
+    TimeSeries.APPLY_Z_NORM = false;
+    MultiVariateTimeSeries[] trainSamples = TimeSeriesLoader.loadMultivariateDatset(new File(dir, "ShapesRandom_TRAIN3"), true);
+    MultiVariateTimeSeries[] testSamples = TimeSeriesLoader.loadMultivariateDatset(new File(dir, "ShapesRandom_TEST3"), true);
+
+    Double[] sequential = fitAndPredict(trainSamples, testSamples, 1);
+    for (int run = 0; run < 2; run++) {
+      Assert.assertArrayEquals(sequential, fitAndPredict(trainSamples, testSamples, 4));
+    }
+  }
+
+  /**
+   * Concurrent predictions of one model must equal the sequential prediction.
+   */
+  @Test
+  public void testConcurrentPredict() throws Exception {
+    TimeSeries[] trainSamples = load("Coffee", "Coffee_TRAIN");
+    final TimeSeries[] testSamples = load("Coffee", "Coffee_TEST");
+
+    final TEASERClassifier teaser = new TEASERClassifier();
+    TEASERClassifier.S = 10; // faster processing
+    teaser.fit(trainSamples);
+    TEASERClassifier.OffsetPrediction expected = teaser.predict(testSamples, true, teaser.model.threshold);
+
+    List<TEASERClassifier.OffsetPrediction> predictions = runConcurrently(
+        new Callable<TEASERClassifier.OffsetPrediction>() {
+          @Override
+          public TEASERClassifier.OffsetPrediction call() {
+            return teaser.predict(testSamples, true, teaser.model.threshold);
+          }
+        });
+    for (TEASERClassifier.OffsetPrediction prediction : predictions) {
+      Assert.assertArrayEquals(expected.labels, prediction.labels);
+      Assert.assertArrayEquals(expected.offsets, prediction.offsets);
+    }
+  }
+
+  @Test
+  public void testConcurrentPredictMultivariate() throws Exception {
+    ClassLoader classLoader = TEASERParallelTest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/multivariate/ShapesRandom").getFile());
+    TimeSeries.APPLY_Z_NORM = false;
+    MultiVariateTimeSeries[] trainSamples = TimeSeriesLoader.loadMultivariateDatset(new File(dir, "ShapesRandom_TRAIN3"), true);
+    final MultiVariateTimeSeries[] testSamples = TimeSeriesLoader.loadMultivariateDatset(new File(dir, "ShapesRandom_TEST3"), true);
+
+    final MTEASERClassifier teaser = new MTEASERClassifier();
+    MTEASERClassifier.S = 10; // faster processing
+    teaser.fit(trainSamples);
+    MTEASERClassifier.OffsetPrediction expected = teaser.predict(testSamples, true, teaser.model.threshold);
+
+    List<MTEASERClassifier.OffsetPrediction> predictions = runConcurrently(
+        new Callable<MTEASERClassifier.OffsetPrediction>() {
+          @Override
+          public MTEASERClassifier.OffsetPrediction call() {
+            return teaser.predict(testSamples, true, teaser.model.threshold);
+          }
+        });
+    for (MTEASERClassifier.OffsetPrediction prediction : predictions) {
+      Assert.assertArrayEquals(expected.labels, prediction.labels);
+      Assert.assertArrayEquals(expected.offsets, prediction.offsets);
+    }
+  }
+
+  /**
+   * Runs the task on four threads at once.
+   */
+  private static <T> List<T> runConcurrently(Callable<T> task) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Callable<T>> tasks = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        tasks.add(task);
+      }
+      List<T> results = new ArrayList<>();
+      for (Future<T> result : executor.invokeAll(tasks)) {
+        results.add(result.get());
+      }
+      return results;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static TEASERClassifier.OffsetPrediction fitAndPredict(
+      TimeSeries[] trainSamples, TimeSeries[] testSamples, SolverType solverType, int threads) {
+    TEASERClassifier teaser = new TEASERClassifier();
+    WEASELClassifier.solverType = solverType;
+    TEASERClassifier.S = 10; // faster processing
+    try (ExecutionContext context = new ExecutionContext(threads)) {
+      teaser.setExecutionContext(context);
+      teaser.fit(trainSamples);
+      return teaser.predict(testSamples, true, teaser.model.threshold);
+    }
+  }
+
+  private static Double[] fitAndPredict(
+      MultiVariateTimeSeries[] trainSamples, MultiVariateTimeSeries[] testSamples, int threads) {
+    MTEASERClassifier teaser = new MTEASERClassifier();
+    MTEASERClassifier.S = 10; // faster processing
+    try (ExecutionContext context = new ExecutionContext(threads)) {
+      teaser.setExecutionContext(context);
+      teaser.fit(trainSamples);
+      return teaser.predict(testSamples);
+    }
+  }
+
+  static TimeSeries[] load(String name, String file) {
+    ClassLoader classLoader = TEASERParallelTest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/univariate/" + name).getFile());
+    return TimeSeriesLoader.loadDataset(new File(dir, file));
+  }
+}
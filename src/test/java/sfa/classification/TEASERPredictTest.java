@@ -0,0 +1,164 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import com.carrotsearch.hppc.DoubleIntHashMap;
+import libsvm.svm;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sfa.timeseries.MultiVariateTimeSeries;
+import sfa.timeseries.TimeSeries;
+import sfa.timeseries.TimeSeriesLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * TEASER only passes the samples yet to be decided on to the next offset. The labels and
+ * offsets must equal those of scoring all samples at each offset.
+ */
+@RunWith(JUnit4.class)
+public class TEASERPredictTest {
+
+  @After
+  public void reset() {
+    TEASERClassifier.S = 20.0;
+    MTEASERClassifier.S = 20.0;
+    TimeSeries.APPLY_Z_NORM = true;
+  }
+
+  @Test
+  public void testCoffee() {
+    testUndecided("Coffee");
+  }
+
+  @Test
+  public void testCBF() {
+    testUndecided("CBF");
+  }
+
+  @Test
+  public void testShapesRandom() throws IOException {
+    ClassLoader classLoader = TEASERPredictTest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/multivariate/ShapesRandom").getFile());
+    TimeSeries.APPLY_Z_NORM = false;
+    MultiVariateTimeSeries[] trainSamples = TimeSeriesLoader.loadMultivariateDatset(new File(dir, "ShapesRandom_TRAIN3"), true);
+    MultiVariateTimeSeries[] testSamples = TimeSeriesLoader.loadMultivariateDatset(new File(dir, "ShapesRandom_TEST3"), true);
+
+    MTEASERClassifier teaser = new MTEASERClassifier();
+    MTEASERClassifier.S = 10; // faster processing
+    teaser.fit(trainSamples);
+
+    for (boolean testing : new boolean[]{true, false}) {
+      // a threshold above S lets all samples reach the last offset
+      for (int threshold = 1; threshold <= MTEASERClassifier.S + 1; threshold += 2) {
+        MTEASERClassifier.OffsetPrediction prediction = teaser.predict(testSamples, testing, threshold);
+
+        Double[] labels = new Double[testSamples.length];
+        int[] offsets = new int[testSamples.length];
+        predictAll(teaser, testSamples, testing, threshold, labels, offsets);
+        Assert.assertArrayEquals("threshold " + threshold, labels, prediction.labels);
+        Assert.assertArrayEquals("threshold " + threshold, offsets, prediction.offsets);
+      }
+    }
+  }
+
+  private void testUndecided(String name) {
+    ClassLoader classLoader = TEASERPredictTest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/univariate/" + name).getFile());
+    TimeSeries[] trainSamples = TimeSeriesLoader.loadDataset(new File(dir, name + "_TRAIN"));
+    TimeSeries[] testSamples = TimeSeriesLoader.loadDataset(new File(dir, name + "_TEST"));
+    testSamples = Arrays.copyOf(testSamples, Math.min(testSamples.length, 100));
+
+    TEASERClassifier teaser = new TEASERClassifier();
+    TEASERClassifier.S = 10; // faster processing
+    teaser.fit(trainSamples);
+
+    for (boolean testing : new boolean[]{true, false}) {
+      // a threshold above S lets all samples reach the last offset
+      for (int threshold = 1; threshold <= TEASERClassifier.S + 1; threshold += 2) {
+        TEASERClassifier.OffsetPrediction prediction = teaser.predict(testSamples, testing, threshold);
+
+        Double[] labels = new Double[testSamples.length];
+        int[] offsets = new int[testSamples.length];
+        predictAll(teaser, testSamples, testing, threshold, labels, offsets);
+        Assert.assertArrayEquals(name + " threshold " + threshold, labels, prediction.labels);
+        Assert.assertArrayEquals(name + " threshold " + threshold, offsets, prediction.offsets);
+      }
+    }
+  }
+
+  /**
+   * Scores all samples at each offset, and keeps the first decision of each sample, as
+   * done before the undecided samples were passed on.
+   */
+  private static void predictAll(
+      TEASERClassifier teaser, TimeSeries[] samples, boolean testing, int threshold,
+      Double[] labels, int[] offsets) {
+    TEASERClassifier.EarlyClassificationModel model = teaser.model;
+    WEASELClassifier[] slaveClassifiers = model.getSlaveClassifiers(teaser.getExecutionContext());
+    DoubleIntHashMap[] counts = createCounts(samples.length);
+
+    for (int s = 0; s < model.slaveModels.length; s++) {
+      if (model.masterModels[s] != null) {
+        TimeSeries[] data = teaser.extractUntilOffset(samples, model.offsets[s], testing);
+        Classifier.Predictions result = slaveClassifiers[s].predictProbabilities(data);
+        for (int i = 0; i < samples.length; i++) {
+          if (labels[i] == null) {
+            double predictNow = svm.svm_predict(model.masterModels[s],
+                TEASERClassifier.generateFeatures(result.probabilities[i], result.realLabels));
+            boolean last = s >= TEASERClassifier.S || model.offsets[s] >= samples[i].getLength();
+            if (last || predictNow == 1) {
+              int count = TEASERClassifier.getCount(counts[i], result.labels[i]);
+              if (count >= threshold || last) {
+                labels[i] = result.labels[i];
+                offsets[i] = model.offsets[s];
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static void predictAll(
+      MTEASERClassifier teaser, MultiVariateTimeSeries[] samples, boolean testing, int threshold,
+      Double[] labels, int[] offsets) {
+    MTEASERClassifier.EarlyClassificationModel model = teaser.model;
+    MUSEClassifier[] slaveClassifiers = model.getSlaveClassifiers(teaser.getExecutionContext());
+    DoubleIntHashMap[] counts = createCounts(samples.length);
+
+    for (int s = 0; s < model.slaveModels.length; s++) {
+      if (model.masterModels[s] != null) {
+        MultiVariateTimeSeries[] data = teaser.extractUntilOffset(samples, model.offsets[s], testing);
+        Classifier.Predictions result = slaveClassifiers[s].predictProbabilities(data);
+        for (int i = 0; i < samples.length; i++) {
+          if (labels[i] == null) {
+            double predictNow = svm.svm_predict(model.masterModels[s],
+                MTEASERClassifier.generateFeatures(result.probabilities[i], result.realLabels));
+            boolean last = s >= MTEASERClassifier.S || model.offsets[s] >= samples[i].getLength();
+            if (last || predictNow == 1) {
+              int count = MTEASERClassifier.getCount(counts[i], result.labels[i]);
+              if (count >= threshold || last) {
+                labels[i] = result.labels[i];
+                offsets[i] = model.offsets[s];
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static DoubleIntHashMap[] createCounts(int size) {
+    DoubleIntHashMap[] counts = new DoubleIntHashMap[size];
+    for (int i = 0; i < size; i++) {
+      counts[i] = new DoubleIntHashMap();
+    }
+    return counts;
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sfa.timeseries.TimeSeries;
+import sfa.timeseries.TimeSeriesLoader;
+
+import java.io.File;
+
+/**
+ * Compares the labels and offsets of TEASER streams, that consume the test samples value
+ * by value, to those of the batch prediction.
+ */
+@RunWith(JUnit4.class)
+public class TEASERStreamTest {
+
+  @After
+  public void reset() {
+    TEASERClassifier.S = 20.0;
+    Classifier.NORMALIZATION = new boolean[]{true, false};
+  }
+
+  @Test
+  public void testVariableLength() {
+    testStream("variable_length", "variable_length_TRAIN", "variable_length_TEST");
+  }
+
+  @Test
+  public void testCoffee() {
+    testStream("Coffee", "Coffee_TRAIN", "Coffee_TEST");
+  }
+
+  @Test
+  public void testCBFNormMean() {
+    Classifier.NORMALIZATION = new boolean[]{true};
+    testStream("CBF", "CBF_TRAIN", "CBF_TEST");
+  }
+
+  @Test
+  public void testCBF() {
+    Classifier.NORMALIZATION = new boolean[]{false};
+    testStream("CBF", "CBF_TRAIN", "CBF_TEST");
+  }
+
+  private void testStream(String name, String trainFile, String testFile) {
+    ClassLoader classLoader = TEASERStreamTest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/univariate/" + name).getFile());
+    TimeSeries[] trainSamples = TimeSeriesLoader.loadDataset(new File(dir, trainFile));
+    TimeSeries[] testSamples = TimeSeriesLoader.loadDataset(new File(dir, testFile));
+
+    TEASERClassifier teaser = new TEASERClassifier();
+    TEASERClassifier.S = 10; // faster processing
+    teaser.fit(trainSamples);
+
+    TEASERClassifier.OffsetPrediction prediction = teaser.predict(testSamples, true, teaser.model.threshold);
+    for (int i = 0; i < testSamples.length; i++) {
+      TEASERStream stream = teaser.newStream();
+      double[] data = testSamples[i].getData();
+      for (int t = 0; t < data.length && !stream.isDecided(); t++) {
+        stream.update(data[t]);
+      }
+      Assert.assertEquals("Streamed prediction of sample " + i + " differs", prediction.labels[i], stream.finish());
+      Assert.assertEquals("Streamed offset of sample " + i + " differs", prediction.offsets[i], stream.getOffset());
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package sfa.classification;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import sfa.timeseries.TimeSeries;
+import sfa.timeseries.TimeSeriesLoader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * WEASEL using a hashed feature space of 2^20 buckets instead of the dictionary.
+ */
+public class WEASELHashingClassifierTest extends AbstractClassifierTest{
+
+    private static final int HASH_BITS = 20;
+
+    // maximal difference of the test accuracy to the dictionary
+    private static final double MAX_ACCURACY_LOSS = 0.04;
+
+    @Override
+    protected List<DataSet> getDataSets() {
+        List<DataSet> dataSets=new ArrayList<>();
+        //variable_length;Weasel;0.929;0.964 (dictionary: 0.929;0.964)
+        dataSets.add(new DataSet("variable_length", 0.929, 0.964));
+        //Coffee;Weasel;1.0;1.0 (dictionary: 1.0;1.0)
+        dataSets.add(new DataSet("Coffee", 1.0, 1.0));
+        //Beef;Weasel;0.9;0.8 (dictionary: 0.9;0.833)
+        dataSets.add(new DataSet("Beef", 0.9, 0.8));
+        //CBF;Weasel;1.0;0.984 (dictionary: 1.0;0.983)
+        dataSets.add(new DataSet("CBF", 1.0, 0.984));
+
+        return dataSets;
+    }
+
+    @Override
+    protected Classifier initClassifier() {
+        WEASELClassifier.hashBits = HASH_BITS;
+        return new WEASELClassifier();
+    }
+
+    @After
+    public void resetHashing() {
+        WEASELClassifier.hashBits = 0;
+    }
+
+    @Test
+    public void testAccuracyAgainstDictionary() {
+        for (DataSet dataSet : getDataSets()) {
+            File train = getTrainFiles(dataSet)[0];
+            File test = new File(train.getAbsolutePath().replaceFirst("TRAIN", "TEST"));
+            TimeSeries[] trainSamples = TimeSeriesLoader.loadDataset(train);
+            TimeSeries[] testSamples = TimeSeriesLoader.loadDataset(test);
+
+            WEASELClassifier.hashBits = 0;
+            Classifier.Score dictionary = new WEASELClassifier().eval(trainSamples, testSamples);
+
+            WEASELClassifier weasel = (WEASELClassifier) initClassifier();
+            Classifier.Score hashed = weasel.eval(trainSamples, testSamples);
+            System.out.println(dataSet.name + ";hashed;" + hashed.getTestingAccuracy()
+                + ";dictionary;" + dictionary.getTestingAccuracy());
+
+            Assert.assertTrue("hashed accuracy of " + dataSet.name + " drops below the dictionary",
+                hashed.getTestingAccuracy() >= dictionary.getTestingAccuracy() - MAX_ACCURACY_LOSS);
+
+            // liblinear only sees the buckets in use, not all 2^(hashBits+1) buckets
+            WEASELClassifier.WEASELModel model = weasel.getModel();
+            Assert.assertEquals(model.weasel.dict.size(), model.linearModel.getNrFeature());
+            Assert.assertTrue(model.weasel.dict.size() < 2 << HASH_BITS);
+        }
+    }
+}
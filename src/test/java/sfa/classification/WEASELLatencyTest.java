@@ -0,0 +1,115 @@
+// Copyright (c) 2017 - Patrick Schäfer (patrick.schaefer@hu-berlin.de)
+// Distributed under the GLP 3.0 (See accompanying file LICENSE)
+package sfa.classification;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sfa.timeseries.TimeSeries;
+import sfa.timeseries.TimeSeriesLoader;
+import sfa.transformation.SFA;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compares the latency of single sample predictions of WEASEL and of the compiled
+ * WEASEL model to the batch prediction of one sample.
+ */
+@RunWith(JUnit4.class)
+public class WEASELLatencyTest {
+
+  private static final int WARMUP = 2;
+
+  @Test
+  public void testSingleSampleLatency() {
+    ClassLoader classLoader = WEASELLatencyTest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/univariate/CBF").getFile());
+    TimeSeries[] trainSamples = TimeSeriesLoader.loadDataset(new File(dir, "CBF_TRAIN"));
+    TimeSeries[] testSamples = TimeSeriesLoader.loadDataset(new File(dir, "CBF_TEST"));
+
+    WEASELClassifier weasel = new WEASELClassifier();
+    weasel.fit(trainSamples);
+
+    CompiledWEASELModel compiled = weasel.compile();
+    Assert.assertTrue(compiled.size() > 0);
+
+    // all paths must predict the same labels
+    Double[] labels = weasel.predict(testSamples);
+    for (int i = 0; i < testSamples.length; i++) {
+      Assert.assertEquals("Prediction of sample " + i + " differs", labels[i], weasel.predict(testSamples[i]));
+      Assert.assertEquals("Compiled prediction of sample " + i + " differs", labels[i], compiled.predict(testSamples[i]));
+    }
+
+    long[] single = new long[testSamples.length];
+    long[] compiledSingle = new long[testSamples.length];
+    long[] batch = new long[testSamples.length];
+    for (int run = 0; run <= WARMUP; run++) {
+      for (int i = 0; i < testSamples.length; i++) {
+        long time = System.nanoTime();
+        weasel.predict(testSamples[i]);
+        single[i] = System.nanoTime() - time;
+
+        time = System.nanoTime();
+        compiled.predict(testSamples[i]);
+        compiledSingle[i] = System.nanoTime() - time;
+
+        time = System.nanoTime();
+        weasel.predict(new TimeSeries[]{testSamples[i]});
+        batch[i] = System.nanoTime() - time;
+      }
+    }
+
+    System.out.println("WEASEL single sample:\t" + percentiles(single));
+    System.out.println("WEASEL compiled:\t" + percentiles(compiledSingle));
+    System.out.println("WEASEL batch of one:\t" + percentiles(batch));
+  }
+
+  @Test
+  public void testCompiledHashing() {
+    ClassLoader classLoader = WEASELLatencyTest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/univariate/Beef").getFile());
+    TimeSeries[] trainSamples = TimeSeriesLoader.loadDataset(new File(dir, "Beef_TRAIN"));
+    TimeSeries[] testSamples = TimeSeriesLoader.loadDataset(new File(dir, "Beef_TEST"));
+
+    WEASELClassifier.hashBits = 20;
+    WEASELClassifier weasel = new WEASELClassifier();
+    weasel.fit(trainSamples);
+
+    CompiledWEASELModel compiled = weasel.compile();
+    Double[] labels = weasel.predict(testSamples);
+
+    // the compiled model must not change with the trained model
+    for (SFA sfa : weasel.getModel().weasel.signature) {
+      if (sfa != null) {
+        for (double[] bins : sfa.bins) {
+          Arrays.fill(bins, 0);
+        }
+      }
+    }
+
+    for (int i = 0; i < testSamples.length; i++) {
+      Assert.assertEquals("Compiled prediction of sample " + i + " differs", labels[i], compiled.predict(testSamples[i]));
+    }
+  }
+
+  @After
+  public void resetHashing() {
+    WEASELClassifier.hashBits = 0;
+  }
+
+  private static String percentiles(long[] times) {
+    long[] sorted = times.clone();
+    Arrays.sort(sorted);
+    return String.format(Locale.ENGLISH, "p50: %.3f ms\tp99: %.3f ms",
+        sorted[(int) (0.50 * (sorted.length - 1))] / 1e6,
+        sorted[(int) (0.99 * (sorted.length - 1))] / 1e6);
+  }
+
+  public static void main(String[] args) {
+    new WEASELLatencyTest().testSingleSampleLatency();
+  }
+}
@@ -0,0 +1,80 @@
+package sfa.transformation;
+
+import com.carrotsearch.hppc.IntIntHashMap;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sfa.classification.Classifier.Words;
+import sfa.timeseries.TimeSeries;
+import sfa.timeseries.TimeSeriesLoader;
+
+import java.io.File;
+import java.util.Arrays;
+
+@RunWith(JUnit4.class)
+public class BOSSTest {
+
+  /**
+   * The bags of all word lengths built in one pass must equal the bags built for each
+   * word length on its own.
+   */
+  @Test
+  public void testBagsOfAllWordLengths() {
+    ClassLoader classLoader = BOSSTest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/univariate/CBF").getFile());
+    TimeSeries[] samples = TimeSeriesLoader.loadDataset(new File(dir, "CBF_TRAIN"));
+
+    int minF = 6;
+    int maxF = 16;
+    for (int windowLength : new int[]{10, 40, 100}) {
+      for (boolean normMean : new boolean[]{true, false}) {
+        BOSS boss = new BOSS(maxF, 4, windowLength, normMean);
+        int[][] words = boss.createWords(samples);
+        BOSS.BagOfPattern[][] bags = boss.createBagOfPatterns(words, samples, minF, maxF);
+        Assert.assertEquals((maxF - minF) / 2 + 1, bags.length);
+
+        for (int f = minF; f <= maxF; f += 2) {
+          BOSS.BagOfPattern[] bag = boss.createBagOfPattern(words, samples, f);
+          for (int j = 0; j < samples.length; j++) {
+            IntIntHashMap expected = createBag(words[j], boss.symbols, f);
+            assertBag(expected, samples[j].getLabel(), bags[(f - minF) / 2][j]);
+            assertBag(expected, samples[j].getLabel(), bag[j]);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The bag of one word length, as built before the bags of all word lengths were
+   * built in one pass.
+   */
+  private static IntIntHashMap createBag(int[] words, int symbols, int wordLength) {
+    final byte usedBits = (byte) Words.binlog(symbols);
+    final long mask = (1L << (usedBits * wordLength)) - 1L;
+
+    IntIntHashMap bag = new IntIntHashMap(words.length);
+    long lastWord = Long.MIN_VALUE;
+    for (int offset = 0; offset < words.length; offset++) {
+      long word = words[offset] & mask;
+      if (word != lastWord) { // ignore adjacent samples
+        bag.putOrAdd((int) word, 1, 1);
+      }
+      lastWord = word;
+    }
+    return bag;
+  }
+
+  private static void assertBag(IntIntHashMap expected, Double label, BOSS.BagOfPattern bag) {
+    Assert.assertEquals(label, bag.label);
+    Assert.assertEquals(expected.size(), bag.size());
+
+    int[] words = expected.keys().toArray();
+    Arrays.sort(words);
+    Assert.assertArrayEquals(words, bag.words);
+    for (int k = 0; k < words.length; k++) {
+      Assert.assertEquals(expected.get(words[k]), bag.counts[k]);
+    }
+  }
+}
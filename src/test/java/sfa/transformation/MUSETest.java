@@ -0,0 +1,178 @@
+package sfa.transformation;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import sfa.classification.Classifier.Words;
+import sfa.classification.MUSEClassifier;
+import sfa.timeseries.MultiVariateTimeSeries;
+import sfa.timeseries.TimeSeries;
+import sfa.timeseries.TimeSeriesLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class MUSETest {
+
+  @After
+  public void reset() {
+    TimeSeries.APPLY_Z_NORM = true;
+  }
+
+  /**
+   * The words of maxF symbols masked to a shorter word length must equal the words
+   * created for that word length on its own.
+   */
+  @Test
+  public void testMaskedWords() throws IOException {
+    MultiVariateTimeSeries[] samples = load("ShapesRandom", "ShapesRandom_TRAIN3");
+    int[] windowLengths = new int[]{2, 3, 5, 8, 13, 21, 34};
+    int maxF = 6;
+    int maxS = 4;
+
+    for (SFA.HistogramType histType : new SFA.HistogramType[]{
+        SFA.HistogramType.EQUI_DEPTH, SFA.HistogramType.EQUI_FREQUENCY}) {
+      for (boolean normMean : new boolean[]{true, false}) {
+        MUSE wordModel = new MUSE(maxF, maxS, histType, windowLengths, normMean, false);
+        for (int f = 2; f < maxF; f += 2) {
+          MUSE model = new MUSE(f, maxS, histType, windowLengths, normMean, false);
+          int mask = (1 << (Words.binlog(maxS) * f)) - 1;
+          for (int w = 0; w < windowLengths.length; w++) {
+            int[][] masked = wordModel.createWords(samples, w);
+            int[][] words = model.createWords(samples, w);
+            Assert.assertEquals(words.length, masked.length);
+            for (int i = 0; i < words.length; i++) {
+              Assert.assertTrue(words[i].length > 0);
+              Assert.assertEquals(words[i].length, masked[i].length);
+              for (int offset = 0; offset < words[i].length; offset++) {
+                Assert.assertEquals(histType + " normMean " + normMean + " f " + f
+                        + " window length " + windowLengths[w],
+                    words[i][offset], masked[i][offset] & mask);
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A feature packed by createWord must decode to its window length index, dimension and
+   * words, also if the packed fields take all 64 bits.
+   */
+  @Test
+  public void testCreateWord() {
+    // maxF, maxS, number of window lengths, number of dimensions
+    int[][] configurations = new int[][]{
+        {6, 4, 1, 1},
+        {6, 4, 37, 3},
+        {14, 4, 8, 32},    // 3 + 5 + 2 * 28 bits
+        {10, 8, 16, 1},    // 4 + 0 + 2 * 30 bits
+        {6, 16, 256, 256}, // 8 + 8 + 2 * 24 bits
+        {8, 16, 1, 1},     // 0 + 0 + 2 * 32 bits
+    };
+    for (int[] configuration : configurations) {
+      int maxF = configuration[0];
+      int maxS = configuration[1];
+      int windows = configuration[2];
+      int dimensions = configuration[3];
+      MUSE model = new MUSE(maxF, maxS, SFA.HistogramType.EQUI_DEPTH, new int[windows], false, false);
+      int maxWord = (int) ((1L << (Words.binlog(maxS) * maxF)) - 1);
+
+      for (int w : new int[]{0, windows / 2, windows - 1}) {
+        for (int dim : new int[]{0, dimensions / 2, dimensions - 1}) {
+          for (int word : new int[]{0, 1, maxWord / 3, maxWord}) {
+            for (int word2 : new int[]{0, 1, maxWord / 5, maxWord}) {
+              MUSE.MuseWord decoded = model.decode(model.createWord(w, dim, word, word2));
+              Assert.assertEquals(Arrays.toString(configuration),
+                  new MUSE.MuseWord(w, dim, word, word2), decoded);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A channel of noise must be ranked below the channels of the shapes, also when only
+   * every k-th sample is used for the ranking.
+   */
+  @Test
+  public void testSelectDimensions() throws IOException {
+    MultiVariateTimeSeries[] samples = addNoise(load("ShapesRandom", "ShapesRandom_TRAIN3"));
+    int dimensions = samples[0].getDimensions();
+    boolean[] informative = new boolean[dimensions];
+    Arrays.fill(informative, 0, dimensions - 1, true);
+    boolean[] all = new boolean[dimensions];
+    Arrays.fill(all, true);
+
+    for (int maxSamples : new int[]{samples.length, samples.length / 3}) {
+      boolean[] used = MUSE.selectDimensions(samples, dimensions - 1, maxSamples);
+      Assert.assertArrayEquals("maxSamples " + maxSamples, informative, used);
+    }
+
+    // no selection
+    for (int maxDimensions : new int[]{0, dimensions, dimensions + 1}) {
+      boolean[] used = MUSE.selectDimensions(samples, maxDimensions, samples.length);
+      Assert.assertArrayEquals("maxDimensions " + maxDimensions, all, used);
+    }
+  }
+
+  /**
+   * A MUSE classifier restricted to the informative dimensions must predict as one
+   * trained without the channel of noise.
+   */
+  @Test
+  public void testMaxDimensions() throws IOException {
+    MultiVariateTimeSeries[] trainSamples = load("ShapesRandom", "ShapesRandom_TRAIN3");
+    MultiVariateTimeSeries[] testSamples = load("ShapesRandom", "ShapesRandom_TEST3");
+
+    try {
+      Double[] expected = predict(trainSamples, testSamples);
+
+      MUSEClassifier.maxDimensions = trainSamples[0].getDimensions();
+      MUSEClassifier.dimensionSelectionSamples = trainSamples.length / 3;
+      Assert.assertArrayEquals(expected, predict(addNoise(trainSamples), addNoise(testSamples)));
+    } finally {
+      MUSEClassifier.maxDimensions = 0;
+      MUSEClassifier.dimensionSelectionSamples = 1000;
+    }
+  }
+
+  private static Double[] predict(
+      MultiVariateTimeSeries[] trainSamples, MultiVariateTimeSeries[] testSamples) {
+    MUSEClassifier muse = new MUSEClassifier();
+    muse.fit(trainSamples);
+    return muse.score(testSamples).labels;
+  }
+
+  /**
+   * Appends a channel of gaussian noise to each sample.
+   */
+  private static MultiVariateTimeSeries[] addNoise(MultiVariateTimeSeries[] samples) {
+    Random random = new Random(1);
+    MultiVariateTimeSeries[] noisy = new MultiVariateTimeSeries[samples.length];
+    for (int i = 0; i < samples.length; i++) {
+      TimeSeries[] timeSeries = Arrays.copyOf(samples[i].timeSeries, samples[i].getDimensions() + 1);
+      double[] noise = new double[samples[i].getLength()];
+      for (int j = 0; j < noise.length; j++) {
+        noise[j] = random.nextGaussian();
+      }
+      timeSeries[timeSeries.length - 1] = new TimeSeries(noise, samples[i].getLabel());
+      noisy[i] = new MultiVariateTimeSeries(timeSeries, samples[i].getLabel());
+    }
+    return noisy;
+  }
+
+  private static MultiVariateTimeSeries[] load(String name, String file) throws IOException {
+    ClassLoader classLoader = MUSETest.class.getClassLoader();
+    File dir = new File(classLoader.getResource("datasets/multivariate/" + name).getFile());
+    TimeSeries.APPLY_Z_NORM = false;
+    return TimeSeriesLoader.loadMultivariateDatset(new File(dir, file), true);
+  }
+}
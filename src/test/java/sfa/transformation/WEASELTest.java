@@ -1,5 +1,7 @@
 package sfa.transformation;
 
+import com.carrotsearch.hppc.LongHashSet;
+import com.carrotsearch.hppc.cursors.LongIntCursor;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -71,5 +73,42 @@ public class WEASELTest {
     WEASEL.BagOfBigrams[] bag2 = model.createBagOfPatterns(words2, new TimeSeries[]{ts}, 8);
     Assert.assertNotNull("BagOfBigrams is null:", bag2);
   }
-}
 
+  /**
+   * The chi-squared test keeps at most WORD_LIMIT uni- and bigrams, and filters the bags
+   */
+  @Test
+  public void testTrainChiSquaredWordLimit() {
+    int limit = WEASEL.WORD_LIMIT;
+    try {
+      WEASEL.WORD_LIMIT = 5;
+      WEASEL model = new WEASEL(4, 4, new int[]{8}, false, false);
+
+      // class 1 contains all words, class 2 only the last unigram
+      WEASEL.BagOfBigrams[] bags = new WEASEL.BagOfBigrams[20];
+      for (int i = 0; i < bags.length; i++) {
+        bags[i] = new WEASEL.BagOfBigrams(20, i % 2 == 0 ? 1.0 : 2.0);
+        if (i % 2 == 0) {
+          for (long word = 1; word <= 10; word++) {
+            bags[i].bob.put(word, 1);
+            bags[i].bob.put(word << 32 | word, 1);
+          }
+        } else {
+          bags[i].bob.put(10, 1);
+        }
+      }
+
+      LongHashSet selected = model.trainChiSquared(bags, 2);
+      Assert.assertEquals(10, selected.size());
+      Assert.assertFalse("unigram in both classes was selected", selected.contains(10));
+
+      for (WEASEL.BagOfBigrams bag : bags) {
+        for (LongIntCursor word : bag.bob) {
+          Assert.assertTrue("unselected feature in bag", selected.contains(word.key));
+        }
+      }
+    } finally {
+      WEASEL.WORD_LIMIT = limit;
+    }
+  }
+}